@@ -0,0 +1,67 @@
+import java.util.*;
+import soot.Unit;
+
+// Reusable state of one method analysis. Contexts are pooled per thread, so
+// the tables and buffers are cleared between bodies instead of allocated
+// again; a nested analysis (a callee summary computed while its caller is
+// being analysed) simply takes another context from the pool.
+class AnalysisContext {
+    private static final ThreadLocal<Deque<AnalysisContext>> pool = ThreadLocal.withInitial(ArrayDeque::new);
+
+    PointsToIndex index = new PointsToIndex();
+    Map<Unit, PointsToMap> out = new HashMap<>();
+    Worklist worklist = new Worklist();
+    // Initial OUT shared by all units, and the OUT being computed
+    PointsToMap initial = new PointsToMap(0);
+    PointsToMap newout = new PointsToMap(0);
+    // Per-unit maps handed out by map(), kept for the next body
+    List<PointsToMap> maps = new ArrayList<>();
+    int mapsUsed;
+
+    // Delta propagation
+    Map<Unit, int[]> stmtNames = new HashMap<>();
+    Map<Unit, BitSet> dirty = new HashMap<>();
+    List<BitSet> dirtySets = new ArrayList<>();
+    Set<Unit> visited = new HashSet<>();
+    BitSet changedOut = new BitSet();
+
+    static AnalysisContext acquire(){
+        AnalysisContext context = pool.get().poll();
+        return context != null ? context : new AnalysisContext();
+    }
+
+    // Return the context to the pool; nothing of the method stays reachable
+    void release(){
+        index.clear();
+        out.clear();
+        worklist.clear();
+        initial.clear();
+        newout.clear();
+        for (int i = 0; i < mapsUsed; i++) {
+            maps.get(i).clear();
+        }
+        mapsUsed = 0;
+        stmtNames.clear();
+        for (BitSet set : dirty.values()) {
+            set.clear();
+        }
+        dirty.clear();
+        visited.clear();
+        changedOut.clear();
+        pool.get().push(this);
+    }
+
+    // A pooled map sharing the chunks of initial
+    PointsToMap map(){
+        if (mapsUsed == maps.size()) maps.add(new PointsToMap(0));
+        PointsToMap map = maps.get(mapsUsed++);
+        map.assign(initial);
+        return map;
+    }
+
+    // A pooled, empty bitset
+    BitSet dirtySet(int i){
+        while (dirtySets.size() <= i) dirtySets.add(new BitSet());
+        return dirtySets.get(i);
+    }
+}
@@ -0,0 +1,133 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import soot.*;
+import soot.options.Options;
+
+// Resident analysis. Soot is set up once and its Scene, with the resolved
+// library classes and the bodies built so far, stays loaded between
+// requests. Results are kept in a cache by body hash (in memory unless
+// -cache is given), so a repeated query costs little more than hashing the
+// bodies.
+//
+// Requests are lines on stdin or on a connection to a loopback port:
+//   analyze <class> [<method name>]  the printed lines of the class (or of
+//                                    the methods with that name)
+//   reload                           set Soot up again, e.g. after classes
+//                                    changed on disk; the cache is kept
+//   quit                             end the session
+//   shutdown                         stop the daemon (socket mode)
+// Every request is answered by its result lines followed by one line
+// "ok <lines> <millis>ms", or by a single line "error <message>".
+// Requests are analysed on the calling thread and no class is written out,
+// so PA2 refuses -threads and -scalar-replace together with -daemon.
+class AnalysisDaemon {
+    AnalysisTransformer analysis;
+    String[] sootArgs;
+    boolean running = true;
+
+    AnalysisDaemon(AnalysisTransformer analysis, String[] sootArgs){
+        this.analysis = analysis;
+        this.sootArgs = sootArgs;
+    }
+
+    // Load the classes to analyse, and the call graph when summaries need it
+    void setup(){
+        G.reset();
+        if (!Options.v().parse(sootArgs)) {
+            throw new IllegalArgumentException("invalid Soot arguments " + String.join(" ", sootArgs));
+        }
+        Options.v().set_output_format(Options.output_format_none);
+        Scene.v().loadNecessaryClasses();
+        if (AnalysisTransformer.summaries != null) {
+            PackManager.v().getPack("cg").apply();
+            AnalysisTransformer.summaries = new SummaryEngine(analysis);
+        }
+        if (AnalysisTransformer.cache == null) {
+            AnalysisTransformer.cache = new ResultCache(null, AnalysisTransformer.ANALYSIS_VERSION);
+        }
+    }
+
+    // Serve requests from stdin until quit or end of input
+    void serveStdin() throws IOException {
+        serve(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)),
+            new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+    }
+
+    // Serve one connection at a time on a loopback port until shutdown
+    void serveSocket(int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.err.println("listening on " + server.getLocalSocketAddress());
+            while (running) {
+                try (Socket socket = server.accept()) {
+                    serve(new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)),
+                        new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)));
+                } catch (IOException e) {
+                    System.err.println("connection failed: " + e);
+                }
+            }
+        }
+    }
+
+    private void serve(BufferedReader in, PrintWriter out) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] words = line.trim().split("\\s+");
+            if (words[0].isEmpty()) continue;
+            if (words[0].equals("quit")) break;
+            if (words[0].equals("shutdown")) {
+                running = false;
+                break;
+            }
+            long start = System.nanoTime();
+            try {
+                List<String> lines = handle(words);
+                for (String s : lines) {
+                    out.println(s);
+                }
+                out.println("ok " + lines.size() + " " + (System.nanoTime() - start) / 1_000_000 + "ms");
+            } catch (RuntimeException e) {
+                out.println("error " + String.valueOf(e.getMessage()).replace('\n', ' '));
+            }
+            out.flush();
+        }
+        out.flush();
+    }
+
+    private List<String> handle(String[] words){
+        if (words[0].equals("reload") && words.length == 1) {
+            setup();
+            return Collections.emptyList();
+        }
+        if (words[0].equals("analyze") && (words.length == 2 || words.length == 3)) {
+            return analyze(words[1], words.length == 3 ? words[2] : null);
+        }
+        throw new IllegalArgumentException("unknown request: " + String.join(" ", words));
+    }
+
+    // Printed lines of the concrete methods of a class, all of them or those
+    // named methodName
+    private List<String> analyze(String className, String methodName){
+        SootClass cls = Scene.v().getSootClassUnsafe(className);
+        if (cls == null || cls.isPhantom()) {
+            throw new IllegalArgumentException("unknown class " + className);
+        }
+        AnalysisTransformer.strings.clear();
+        boolean found = false;
+        for (SootMethod method : new ArrayList<>(cls.getMethods())) {
+            if (!method.isConcrete() || (methodName != null && !method.getName().equals(methodName))) continue;
+            found = true;
+            analysis.internalTransform(method.retrieveActiveBody(), "jtp.dfa", Collections.emptyMap());
+        }
+        if (!found) {
+            throw new IllegalArgumentException("no concrete method " + (methodName != null ? methodName + " " : "") + "in " + className);
+        }
+        if (AnalysisTransformer.siteReport != null) AnalysisTransformer.siteReport.finish();
+        List<String> lines = new ArrayList<>(AnalysisTransformer.strings);
+        AnalysisTransformer.strings.clear();
+        return lines;
+    }
+}
@@ -1,4 +1,6 @@
 import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAdder;
 import soot.*;
 import soot.jimple.AnyNewExpr;
 import soot.jimple.internal.*;
@@ -7,120 +9,543 @@ import soot.toolkits.graph.*;
 import soot.toolkits.scalar.BackwardFlowAnalysis;
 import soot.toolkits.scalar.FlowSet;
 
-class Box {
-	int line;
-    Map<String, Set<Box>> fields;
-    boolean dummy;
-    boolean escape;
-    Box(int line, boolean dummy){
-        this.line = line;
-        fields = new HashMap<>();
-        this.dummy = dummy;
-        if(dummy) escape = true;
-        else escape = false;
-    }
-    @Override
-    public String toString(){
-        String s = Integer.toString(line);
-        s = s + "-" + escape + dummy;
-        for (Map.Entry<String, Set<Box>> entry : fields.entrySet())  
-            s = s + " " + entry.getKey() + " " + entry.getValue();
-        return s;
-    }
-}
-
 public class AnalysisTransformer extends BodyTransformer {
-    public static SortedSet<String> strings = new TreeSet<>();
+    // Bodies may be transformed concurrently (soot -num-threads), so results
+    // go into a lock-free sorted set and all other state is per method
+    public static SortedSet<String> strings = new ConcurrentSkipListSet<>();
+    // Fixpoint statistics over all analysed methods
+    public static LongAdder methods = new LongAdder();
+    public static LongAdder iterations = new LongAdder();
+    // Bump whenever a change to the analysis can change its printed results
+    public static final int ANALYSIS_VERSION = 5;
+    // Optional persistent cache of per-method results
+    public static ResultCache cache = null;
+    // Interprocedural summaries for call sites; null treats every call
+    // argument (and virtual call receiver) as escaping
+    public static SummaryEngine summaries = null;
+    // Incremental runs: only bodies of these classes are analysed
+    public static Set<String> onlyClasses = null;
+    // Per-class results and dependencies for later incremental runs
+    public static DependencyIndex dependencies = null;
+    // Boxes kept apart per base box for unknown objects read through a field
+    // at one unit; 0 gives every such unit a single box
+    public static int siteContexts = 0;
+    // Per-method cost metrics; null disables recording
+    public static MethodMetrics.Recorder metrics = null;
+    // How OUT sets are recomputed: DENSE joins and compares whole maps on
+    // every visit, DELTA only sends changed names along CFG edges, CHECK runs
+    // both and reports methods whose results differ
+    public enum Propagation { DENSE, DELTA, CHECK }
+    public static Propagation propagation = Propagation.DELTA;
+    // Batch mode: results are streamed per class instead of collected in strings
+    public static ResultStream output = null;
+    // Skip the fixpoint for methods the pre-pass shows to print nothing
+    public static boolean prepass = true;
+    public static LongAdder prepassed = new LongAdder();
+    // Loads through unknown objects that get boxes of their own; deeper
+    // access paths share one summary box per method
+    public static int fieldDepth = 3;
+    // Per-method budgets, 0 for none. A method that runs out gets the
+    // conservative answer that all of its allocation sites escape.
+    public static int maxIterations = 0;
+    public static int maxBoxes = 0;
+    public static long maxMillis = 0;
+    public static LongAdder overBudget = new LongAdder();
+    static final String BUDGET_FLAG = " [over budget: ";
+    // JSON Lines report of every allocation site; null disables it. Each
+    // method is analysed in full for it, so the pre-pass and the cache are
+    // bypassed.
+    public static SiteReport siteReport = null;
+    // Allocations found not escaping, per method, for ScalarReplacer; null
+    // unless it runs. The cache keeps no sites, so it is bypassed.
+    public static Map<SootMethod, Set<Unit>> nonEscaping = null;
     @Override
     protected void internalTransform(Body body, String phaseName, Map<String, String> options) {
 
         String methodName = body.getMethod().getName();
         String className = body.getMethod().getDeclaringClass().getName();
-        
+        if (onlyClasses != null && !onlyClasses.contains(className)) return;
+
+        long hash = 0;
+        String s = null;
+        boolean cached = siteReport == null && nonEscaping == null && cache != null;
+        if (siteReport == null && prepass && EscapePrepass.noEscape(body)) {
+            s = "";
+            prepassed.increment();
+            if (nonEscaping != null) {
+                // no allocation of the method escapes
+                Set<Unit> units = new LinkedHashSet<>();
+                for (Unit unit : body.getUnits()) {
+                    if (unit instanceof AssignStmt && ((AssignStmt) unit).getRightOp() instanceof NewExpr) units.add(unit);
+                }
+                nonEscaping.put(body.getMethod(), units);
+            }
+        }
+        else if (cached) {
+            hash = ResultCache.hash(body, resultKey(body));
+            s = cache.get(hash);
+        }
+        if (s == null) {
+            s = analyze(body, methodName, className);
+            // a time budget may run out on one run and not on the next
+            if (cached && !s.contains(BUDGET_FLAG)) {
+                cache.put(hash, s);
+            }
+        }
+        if (output != null) {
+            output.add(body.getMethod().getDeclaringClass(), s);
+        }
+        else if (!s.isEmpty()) {
+            strings.add(s);
+        }
+        if (dependencies != null) {
+            recordDependencies(body, className, s);
+        }
+    }
+
+    // Escaping lines of one method as printed, or "" if there are none
+    private String analyze(Body body, String methodName, String className){
+        long start = metrics != null ? System.nanoTime() : 0;
+
         // Construct CFG for the current method's body
         ExceptionalUnitGraph cfg = new ExceptionalUnitGraph(body);
-        
-        // Point to Map
-        Map<Unit, Map<String, Set<Box>>> out = new HashMap<>();
-        SortedMap<Integer, Box> boxes = new TreeMap<>();
-        pointsToGraph(body, cfg, out, boxes);
-        
-        // Print Escaping Lines
-        String s = className + ":" + methodName;
-        int cnt = 0;
-        for (Map.Entry<Integer, Box> entry : boxes.entrySet()) {
-            int line = entry.getKey();
-            Box box = entry.getValue();
+
+        AnalysisContext context = newContext();
+        try {
+            PointsToIndex index = context.index;
+            if (metrics != null) {
+                index.metrics = new MethodMetrics(body.getMethod().getSignature());
+            }
+            int iters = pointsToGraph(body, cfg, context);
+            methods.increment();
+            iterations.add(iters);
+
+            if (index.metrics != null) {
+                index.metrics.cfgSize = cfg.size();
+                index.metrics.iterations = iters;
+                index.metrics.boxes = index.boxes.size();
+                index.metrics.wallNanos = System.nanoTime() - start;
+                metrics.add(index.metrics);
+            }
+
+            if (index.exceeded != null) {
+                overBudget.increment();
+                if (siteReport != null) siteReport.write(SiteReport.conservative(body, index.exceeded));
+                return conservativeReport(body, methodName, className, index.exceeded);
+            }
+            if (siteReport != null) siteReport.write(SiteReport.records(body, index));
+            if (nonEscaping != null) nonEscaping.put(body.getMethod(), nonEscapingSites(index));
+            String s = report(index, methodName, className);
+            if (propagation == Propagation.CHECK) {
+                s = checkDense(body, cfg, methodName, className, s);
+            }
+            return s;
+        }
+        finally {
+            context.release();
+        }
+    }
+
+    // Result of the dense loop, reported in place of s if they differ
+    private String checkDense(Body body, ExceptionalUnitGraph cfg, String methodName, String className, String s){
+        AnalysisContext dense = newContext();
+        try {
+            dense.index.delta = false;
+            pointsToGraph(body, cfg, dense);
+            String expected = report(dense.index, methodName, className);
+            if (dense.index.exceeded == null && !expected.equals(s)) {
+                System.err.println("delta propagation differs for " + body.getMethod().getSignature()
+                    + ": \"" + s + "\" instead of \"" + expected + "\"");
+                return expected;
+            }
+            return s;
+        }
+        finally {
+            dense.release();
+        }
+    }
+
+    private String report(PointsToIndex index, String methodName, String className){
+        // Print Escaping Lines, one entry per line however many sites it has
+        SortedSet<Integer> lines = new TreeSet<>();
+        for (Box box : index.boxes) {
             if(!box.dummy && box.escape){
-                s = s + " " + line;
-                cnt++;
+                lines.add(box.line);
             }
         }
+        String s = className + ":" + methodName;
+        int cnt = 0;
+        for (int line : lines) {
+            s = s + " " + line;
+            cnt++;
+        }
         if (!methodName.equals("<init>") && cnt>0) {
-            strings.add(s);
+            return s;
+        }
+        return "";
+    }
+
+    // Allocation units whose boxes do not escape. Sites the fixpoint never
+    // reaches have no box and are not included.
+    private Set<Unit> nonEscapingSites(PointsToIndex index){
+        Set<Unit> units = new LinkedHashSet<>();
+        for (Map.Entry<PointsToIndex.Site, Box> entry : index.sites.entrySet()) {
+            if (!entry.getKey().dummy && !entry.getValue().escape) {
+                units.add(entry.getKey().unit);
+            }
         }
+        return units;
     }
 
+    // Every allocation site of the method, flagged with the budget that ran out
+    private String conservativeReport(Body body, String methodName, String className, String exceeded){
+        SortedSet<Integer> lines = new TreeSet<>();
+        for (Unit unit : body.getUnits()) {
+            if (unit instanceof AssignStmt && ((AssignStmt) unit).getRightOp() instanceof NewExpr) {
+                lines.add(unit.getJavaSourceStartLineNumber());
+            }
+        }
+        if (methodName.equals("<init>") || lines.isEmpty()) return "";
+        String s = className + ":" + methodName;
+        for (int line : lines) {
+            s = s + " " + line;
+        }
+        return s + BUDGET_FLAG + exceeded + "]";
+    }
 
-    private void pointsToGraph(Body body, ExceptionalUnitGraph cfg, Map<Unit, Map<String, Set<Box>>> out, SortedMap<Integer, Box> boxes){
+    // Per-method state for the current options, from this thread's pool;
+    // the caller releases it once the results are read
+    private AnalysisContext newContext(){
+        AnalysisContext context = AnalysisContext.acquire();
+        PointsToIndex index = context.index;
+        index.maxContexts = siteContexts;
+        index.maxFieldDepth = fieldDepth;
+        index.delta = propagation != Propagation.DENSE;
+        index.maxIterations = maxIterations;
+        index.maxBoxes = maxBoxes;
+        if (maxMillis > 0) index.deadline = System.nanoTime() + maxMillis * 1_000_000;
+        return context;
+    }
+
+    // The result of a method depends on the classes whose summaries it used,
+    // and on the overrides of the methods it calls virtually
+    private void recordDependencies(Body body, String className, String s){
+        DependencyIndex.ClassRecord record = dependencies.record(className);
+        // like the cache, never replay a line a budget cut short
+        if (s.contains(BUDGET_FLAG)) {
+            record.partial = true;
+        }
+        else if (!s.isEmpty()) {
+            record.lines.add(s);
+        }
+        if (summaries == null) return;
+        for (Unit unit : body.getUnits()) {
+            Stmt stmt = (Stmt) unit;
+            if (!stmt.containsInvokeExpr()) continue;
+            InvokeExpr invokeExpr = stmt.getInvokeExpr();
+            if (invokeExpr instanceof InstanceInvokeExpr && !(invokeExpr instanceof SpecialInvokeExpr)) {
+                record.calls.add(invokeExpr.getMethodRef().getSignature());
+            }
+            List<SootMethod> targets = summaries.targets(unit, invokeExpr);
+            if (targets == null) continue;
+            for (SootMethod target : targets) {
+                String dep = target.getDeclaringClass().getName();
+                if (!dep.equals(className)) record.deps.add(dep);
+            }
+        }
+    }
+
+    // Options and summaries of all call sites, which the result depends on
+    // besides the body
+    private String resultKey(Body body){
+        StringBuilder key = new StringBuilder("contexts=" + siteContexts + ";depth=" + fieldDepth + ";");
+        if (summaries == null) return key.toString();
+        for (Unit unit : body.getUnits()) {
+            Stmt stmt = (Stmt) unit;
+            if (stmt.containsInvokeExpr()) {
+                key.append(summaries.summaryAt(unit, stmt.getInvokeExpr())).append(';');
+            }
+        }
+        return key.toString();
+    }
+
+    // Escape summary of a method, assuming nothing about its arguments
+    MethodSummary summarize(Body body){
+        ExceptionalUnitGraph cfg = new ExceptionalUnitGraph(body);
+        AnalysisContext context = newContext();
+        try {
+            PointsToIndex index = context.index;
+            index.summary = true;
+            pointsToGraph(body, cfg, context);
+            if (index.exceeded != null) {
+                overBudget.increment();
+                return MethodSummary.conservative(body.getMethod().getParameterCount());
+            }
+
+            // a parameter escapes, or is returned, when any of the caller's
+            // objects reachable from it does
+            MethodSummary summary = new MethodSummary(body.getMethod().getParameterCount());
+            BitSet returnedObjects = reachable(index.returned, index);
+            for (Map.Entry<Integer, Box> entry : index.paramBoxes.entrySet()) {
+                int param = entry.getKey();
+                BitSet objects = new BitSet();
+                objects.set(entry.getValue().id);
+                objects = reachable(objects, index);
+                boolean escapes = false;
+                boolean returned = false;
+                for (int id = objects.nextSetBit(0); id >= 0; id = objects.nextSetBit(id + 1)) {
+                    Box box = index.box(id);
+                    if (!box.param) continue;
+                    escapes |= box.escape;
+                    returned |= returnedObjects.get(id);
+                }
+                if (param < 0) {
+                    summary.thisEscapes = escapes;
+                    summary.thisReturned = returned;
+                }
+                else if (param < summary.escapes.length) {
+                    summary.escapes[param] = escapes;
+                    summary.returned[param] = returned;
+                }
+            }
+            return summary;
+        }
+        finally {
+            context.release();
+        }
+    }
+
+    // Boxes reachable from roots through their fields, roots included
+    private BitSet reachable(BitSet roots, PointsToIndex index){
+        BitSet seen = (BitSet) roots.clone();
+        BitSet frontier = (BitSet) roots.clone();
+        for (int id = frontier.nextSetBit(0); id >= 0; id = frontier.nextSetBit(0)) {
+            frontier.clear(id);
+            Box box = index.box(id);
+            for (BitSet fieldSet : box.fieldSets) {
+                for (int f = fieldSet.nextSetBit(0); f >= 0; f = fieldSet.nextSetBit(f + 1)) {
+                    if (!seen.get(f)) {
+                        seen.set(f);
+                        frontier.set(f);
+                    }
+                }
+            }
+        }
+        return seen;
+    }
+
+    private int pointsToGraph(Body body, ExceptionalUnitGraph cfg, AnalysisContext context){
+        PointsToIndex index = context.index;
+        Map<Unit, PointsToMap> out = context.out;
         // Initialize the points-to graph
+        for (Local local : body.getLocals()) {
+            index.name(local.getName());
+        }
+        PointsToMap ptg = context.initial;
+        for (int name = 0; name < index.nameCount(); name++) {
+            ptg.put(name, PointsToMap.EMPTY);
+        }
         for (Unit unit : cfg) {
-            Map<String, Set<Box>> ptg = new HashMap<>();
-            for (Local local : body.getLocals()) {
-                ptg.put(local.getName(), new HashSet<>());
-            }
-            // for (Value param : body.getParameterLocals()) {
-            //     if (param instanceof Local) {
-            //         Local localParam = (Local) param;
-            //         Set<Box> pts = new HashSet<>();
-            //         Box dummybox = createBox(unit, true, boxes);
-            //         pts.add(dummybox);
-            //         ptg.put(localParam.getName(), pts);
-            //     }
-            // }
-            out.put(unit, ptg);
-        }
-
-        Queue<Unit> worklist = new LinkedList<>();
+            out.put(unit, context.map());
+        }
+        Worklist worklist = context.worklist;
+        worklist.reset(cfg);
         worklist.addAll(cfg.getHeads());
+        if (index.delta) {
+            return pointsToGraphDelta(cfg, context);
+        }
+
+        Set<Unit> visited = context.visited;
+        int heapChanges = 0;
+        while (true) {
+            while (!worklist.isEmpty() && !index.overBudget(worklist.iterations)) {
+                Unit unit = worklist.remove();
+                visited.add(unit);
+                PointsToMap oldout = out.get(unit);
+                PointsToMap newout = getNewOut(unit, cfg, context);
+                if (index.metrics != null) index.metrics.newOutCalls++;
 
-        Map<String, Set<Box>> lastOut = new HashMap<>();
-        while (!worklist.isEmpty()) {
-            Unit unit = worklist.remove();
-            Map<String, Set<Box>> oldout = out.get(unit);
-            Map<String, Set<Box>> newout = getNewOut(unit, cfg, out, boxes);
-
-            // Check if OUT set has changed
-            if (!oldout.equals(newout)) {
-                // System.out.println("Unit: " + unit);
-                // System.out.println("NewOut: " + newout);
-                out.put(unit, newout);
-                for (Unit succ : cfg.getSuccsOf(unit)) {
-                    worklist.add(succ);
+                // Check if OUT set has changed; newout is scratch, so the unit
+                // keeps its map and takes over the chunks of newout
+                if (!oldout.equals(newout)) {
+                    oldout.assign(newout);
+                    if (index.metrics != null) index.metrics.observe(oldout);
+                    worklist.addAll(cfg.getSuccsOf(unit));
                 }
-                // lastOut = newout;
-                // escapeBFS(newout);
             }
+            if (index.exceeded != null || index.heapChanges == heapChanges) break;
+            heapChanges = index.heapChanges;
+            queueHeapReaders(cfg, visited, worklist);
+        }
+        return worklist.iterations;
+    }
+
+    // Boxes are shared by all statements, and a queued statement only sees
+    // its own OUT changes. Once a pass has changed the boxes, every statement
+    // visited so far whose transfer reads or writes them is queued again;
+    // the fixpoint is reached after a pass that leaves the boxes unchanged,
+    // whatever the order of the visits.
+    private void queueHeapReaders(ExceptionalUnitGraph cfg, Set<Unit> visited, Worklist worklist){
+        for (Unit unit : cfg) {
+            if (visited.contains(unit) && !isPureTransfer(unit)) worklist.add(unit);
         }
-        // escapeBFS(lastOut);
-        // System.out.println("Points-to Map: " + out);
     }
 
 
-    private Map<String, Set<Box>> getNewOut(Unit unit, ExceptionalUnitGraph cfg, Map<Unit, Map<String, Set<Box>>> out, SortedMap<Integer, Box> boxes){
-        Map<String, Set<Box>> newout = new HashMap<>();
-        for (Unit pred : cfg.getPredsOf(unit)) {
-            Map<String, Set<Box>> predout = out.get(pred);
-            for (Map.Entry<String, Set<Box>> entry : predout.entrySet()) {
-                String localName = entry.getKey();
-                Set<Box> predSet = entry.getValue();
-                if (newout.containsKey(localName)) {
-                    newout.get(localName).addAll(predSet);
-                } else {
-                    newout.put(localName, new HashSet<>(predSet));
+    // Same fixpoint as the dense loop above, but a visit only recomputes the
+    // names that changed in some predecessor's OUT, plus the names of the
+    // statement itself when its transfer has to run. The transfer only writes
+    // names that occur in the statement, so every other name passes through.
+    // Statements whose transfer reads or writes the heap run on every visit,
+    // exactly as in the dense loop, so both produce the same boxes.
+    private int pointsToGraphDelta(ExceptionalUnitGraph cfg, AnalysisContext context){
+        PointsToIndex index = context.index;
+        Map<Unit, PointsToMap> out = context.out;
+        Map<Unit, int[]> stmtNames = context.stmtNames;
+        Map<Unit, BitSet> dirty = context.dirty;
+        int i = 0;
+        for (Unit unit : cfg) {
+            stmtNames.put(unit, namesOf(unit, index));
+            dirty.put(unit, context.dirtySet(i++));
+        }
+        Set<Unit> visited = context.visited;
+        PointsToMap scratch = context.newout;
+        BitSet changedOut = context.changedOut;
+        Worklist worklist = context.worklist;
+        int heapChanges = 0;
+
+        while (true) {
+            while (!worklist.isEmpty() && !index.overBudget(worklist.iterations)) {
+                Unit unit = worklist.remove();
+                PointsToMap unitOut = out.get(unit);
+                int[] names = stmtNames.get(unit);
+                BitSet changed = dirty.get(unit);
+                boolean first = visited.add(unit);
+                boolean transfer = first || !isPureTransfer(unit);
+                if (first) {
+                    changed.set(0, index.nameCount());
+                }
+                for (int name : names) {
+                    if (changed.get(name)) transfer = true;
+                    changed.clear(name);
+                }
+
+                changedOut.clear();
+                for (int name = changed.nextSetBit(0); name >= 0; name = changed.nextSetBit(name + 1)) {
+                    BitSet in = joinPreds(unit, name, cfg, out, unitOut.get(name));
+                    if (!Objects.equals(in, unitOut.get(name))) {
+                        unitOut.put(name, in);
+                        changedOut.set(name);
+                    }
+                }
+                changed.clear();
+                if (transfer) {
+                    for (int name : names) {
+                        scratch.put(name, joinPreds(unit, name, cfg, out, unitOut.get(name)));
+                    }
+                    index.hint = unitOut;
+                    transfer(unit, scratch, index);
+                    index.hint = null;
+                    if (index.metrics != null) index.metrics.newOutCalls++;
+                    for (int name : names) {
+                        if (!Objects.equals(scratch.get(name), unitOut.get(name))) {
+                            unitOut.put(name, scratch.get(name));
+                            changedOut.set(name);
+                        }
+                        scratch.put(name, null);
+                    }
+                }
+
+                if (!changedOut.isEmpty()) {
+                    if (index.metrics != null) index.metrics.observe(unitOut);
+                    List<Unit> succs = cfg.getSuccsOf(unit);
+                    for (int s = 0; s < succs.size(); s++) {
+                        dirty.get(succs.get(s)).or(changedOut);
+                        worklist.add(succs.get(s));
+                    }
                 }
             }
+            if (index.exceeded != null || index.heapChanges == heapChanges) break;
+            heapChanges = index.heapChanges;
+            queueHeapReaders(cfg, visited, worklist);
+        }
+        return worklist.iterations;
+    }
+
+    // Union of one name over the OUT sets of the predecessors; null if no
+    // predecessor has the name. Shares a predecessor's set, or hint, where
+    // possible.
+    private BitSet joinPreds(Unit unit, int name, ExceptionalUnitGraph cfg, Map<Unit, PointsToMap> out, BitSet hint){
+        BitSet joined = null;
+        List<Unit> preds = cfg.getPredsOf(unit);
+        for (int i = 0; i < preds.size(); i++) {
+            BitSet set = out.get(preds.get(i)).get(name);
+            if (set != null) joined = PointsToMap.union(joined, set, hint);
+        }
+        return joined;
+    }
+
+    // Locals and static fields a statement reads or writes
+    private int[] namesOf(Unit unit, PointsToIndex index){
+        Set<Integer> names = new TreeSet<>();
+        for (ValueBox valueBox : unit.getUseAndDefBoxes()) {
+            Value value = valueBox.getValue();
+            if (value instanceof Local) {
+                names.add(index.name(((Local) value).getName()));
+            }
+            else if (value instanceof StaticFieldRef) {
+                names.add(index.staticName(((StaticFieldRef) value).getField()));
+            }
+        }
+        int[] result = new int[names.size()];
+        int i = 0;
+        for (int name : names) result[i++] = name;
+        return result;
+    }
+
+    // Whether the transfer of a statement depends on nothing but the points-to
+    // sets of its own names, i.e. neither reads nor changes boxes. Mirrors
+    // the cases of transfer(); anything not listed there is a no-op.
+    private boolean isPureTransfer(Unit unit){
+        if (unit instanceof IdentityStmt) return true;
+        if (unit instanceof AssignStmt) {
+            Value leftOp = ((AssignStmt) unit).getLeftOp();
+            Value rightOp = ((AssignStmt) unit).getRightOp();
+            if (leftOp instanceof StaticFieldRef || leftOp instanceof InstanceFieldRef || leftOp instanceof ArrayRef) return false;
+            if (leftOp instanceof Local) {
+                if (rightOp instanceof InvokeExpr) return summaries == null && !(rightOp instanceof StaticInvokeExpr);
+                return !(rightOp instanceof NewExpr || rightOp instanceof Local
+                    || rightOp instanceof InstanceFieldRef || rightOp instanceof ArrayRef);
+            }
+            return true;
+        }
+        if (unit instanceof InvokeStmt) {
+            InvokeExpr invokeExpr = ((InvokeStmt) unit).getInvokeExpr();
+            return summaries == null && !(invokeExpr instanceof StaticInvokeExpr || invokeExpr instanceof VirtualInvokeExpr);
+        }
+        return !(unit instanceof ReturnStmt);
+    }
+
+    // OUT of a unit computed into the context's scratch map. Sets equal to
+    // those of the current OUT are reused, so a visit that changes nothing
+    // allocates nothing.
+    private PointsToMap getNewOut(Unit unit, ExceptionalUnitGraph cfg, AnalysisContext context){
+        PointsToMap newout = context.newout;
+        PointsToMap oldout = context.out.get(unit);
+        newout.clear();
+        List<Unit> preds = cfg.getPredsOf(unit);
+        for (int i = 0; i < preds.size(); i++) {
+            newout.join(context.out.get(preds.get(i)), oldout);
         }
+        context.index.hint = oldout;
+        transfer(unit, newout, context.index);
+        context.index.hint = null;
+        return newout;
+    }
+
+    // Effect of one statement on the points-to map and the boxes. Sets taken
+    // from newout are never changed in place, since they may be shared.
+    private void transfer(Unit unit, PointsToMap newout, PointsToIndex index){
         // process the stmt
         if (unit instanceof IdentityStmt) {
             IdentityStmt identityStmt = (IdentityStmt) unit;
@@ -128,19 +553,17 @@ public class AnalysisTransformer extends BodyTransformer {
             Value rightOp = identityStmt.getRightOp();
             if (leftOp instanceof Local) {
                 Local leftLocal = (Local) leftOp;
-                if (rightOp instanceof ParameterRef) {
-                    ParameterRef parameterRef = (ParameterRef) rightOp;
-                    Set<Box> paramPointsTo = new HashSet<>();
-                    Box dummybox = createBox(unit, true, boxes);
-                    paramPointsTo.add(dummybox);
-                    newout.put(leftLocal.getName(), paramPointsTo);
-                }
-                else if (rightOp instanceof ThisRef) {
-                    ThisRef thisRef = (ThisRef) rightOp;
-                    Set<Box> thisPointsTo = new HashSet<>();
-                    Box dummybox = createBox(unit, true, boxes);
-                    thisPointsTo.add(dummybox);
-                    newout.put(leftLocal.getName(), thisPointsTo);
+                if (rightOp instanceof ParameterRef || rightOp instanceof ThisRef) {
+                    Box dummybox;
+                    if (index.summary) {
+                        int param = rightOp instanceof ParameterRef ? ((ParameterRef) rightOp).getIndex() : -1;
+                        dummybox = index.paramBox(param, unit.getJavaSourceStartLineNumber());
+                    }
+                    else {
+                        dummybox = createBox(unit, true, index);
+                    }
+                    int leftName = index.name(leftLocal.getName());
+                    newout.put(leftName, index.singleton(leftName, dummybox.id));
                 }
             }
         }
@@ -153,321 +576,326 @@ public class AnalysisTransformer extends BodyTransformer {
                 StaticFieldRef globalVarRef = (StaticFieldRef) leftOp;
                 SootField globalField = globalVarRef.getField();
                 Local rightLocal = (Local) rightOp;
-                Set<Box> pointsToSet = newout.getOrDefault(rightLocal.getName(), new HashSet<>());
-                newout.put(globalField.getName(), pointsToSet);
-                markEscape(rightOp, newout);
+                BitSet pointsToSet = newout.getOrEmpty(index.name(rightLocal.getName()));
+                newout.put(index.staticName(globalField), pointsToSet);
+                markEscape(rightOp, unit, Box.Reason.STATIC_FIELD, newout, index);
             }
             else if (leftOp instanceof Local) {
                 Local leftLocal = (Local) leftOp;
-                String leftName = leftLocal.getName();
-                if (rightOp instanceof StaticInvokeExpr) {
+                int leftName = index.name(leftLocal.getName());
+                if (rightOp instanceof InvokeExpr && summaries != null) {
+                    applyCall(unit, (InvokeExpr) rightOp, leftName, newout, index);
+                }
+                else if (rightOp instanceof StaticInvokeExpr) {
                     StaticInvokeExpr staticInvokeExpr = (StaticInvokeExpr) rightOp;
-                    for (Value arg : staticInvokeExpr.getArgs()) {
-                        markEscape(arg, newout);
+                    for (int i = 0; i < staticInvokeExpr.getArgCount(); i++) {
+                        markEscape(staticInvokeExpr.getArg(i), unit, Box.Reason.ARGUMENT, newout, index);
                     }
-                    Set<Box> invokePointsTo = new HashSet<>();
-                    Box dummybox = createBox(unit, true, boxes);
-                    invokePointsTo.add(dummybox);
-                    newout.put(leftName, invokePointsTo);
+                    Box dummybox = createBox(unit, true, index);
+                    newout.put(leftName, index.singleton(leftName, dummybox.id));
                 } 
                 else if (rightOp instanceof StaticFieldRef) {
                     StaticFieldRef globalVarRef = (StaticFieldRef) rightOp;
                     SootField globalField = globalVarRef.getField();
-                    String globalVarName = globalField.getName();
-                    Set<Box> rightPointsTo = new HashSet<>();
-                    if (newout.containsKey(globalVarName)) {
-                        rightPointsTo.addAll(newout.get(globalVarName));
-                    } else {
-                        Box dummybox = createBox(unit, true, boxes);
-                        rightPointsTo.add(dummybox);
+                    int globalVarName = index.staticName(globalField);
+                    BitSet rightPointsTo = newout.get(globalVarName);
+                    if (rightPointsTo == null) {
+                        Box dummybox = createBox(unit, true, index);
+                        rightPointsTo = index.singleton(leftName, dummybox.id);
                         newout.put(globalVarName, rightPointsTo);
                     }
                     newout.put(leftName, rightPointsTo);
                 }
                 else if (rightOp instanceof NewExpr) {
-                    Box box = createBox(unit, false, boxes);
-                    Set<Box> rightPointsTo = new HashSet<>();
-                    rightPointsTo.add(box);
-                    if(isLeftEscaping(leftLocal, newout)){
+                    Box box = createBox(unit, false, index);
+                    if(isLeftEscaping(leftLocal, newout, index) && !box.escape){
                         box.escape = true;
+                        box.reason = Box.Reason.LOCAL;
+                        box.cause = unit;
+                        index.heapChanges++;
                     }
-                    newout.put(leftName, rightPointsTo);
+                    newout.put(leftName, index.singleton(leftName, box.id));
                 }
                 else if (rightOp instanceof Local) {
                     Local rightLocal = (Local) rightOp;
-                    Set<Box> rightPointsTo = newout.getOrDefault(rightLocal.getName(), new HashSet<>());
-                    if(isLeftEscaping(leftLocal, newout)){
-                        escapeBoxSet(rightPointsTo);
+                    BitSet rightPointsTo = newout.getOrEmpty(index.name(rightLocal.getName()));
+                    if(isLeftEscaping(leftLocal, newout, index)){
+                        escapeBoxSet(rightPointsTo, unit, Box.Reason.LOCAL, index);
                     }
                     newout.put(leftName, rightPointsTo);
                 }
                 else if (rightOp instanceof InstanceFieldRef){
                     InstanceFieldRef fieldRef = (InstanceFieldRef) rightOp;
                     Local baseLocal = (Local) fieldRef.getBase();
-                    String fieldName = fieldRef.getField().getName();
-                    Set<Box> basePointsTo = newout.get(baseLocal.getName());
-                    if (basePointsTo != null) {
-                        for (Box box : basePointsTo) {
-                            Set<Box> fieldValues = box.fields.get(fieldName);
-                            if (newout.containsKey(leftName)) {
-                                if (fieldValues != null) {
-                                    newout.get(leftName).addAll(fieldValues);
-                                } 
-                                else if(box.dummy){
-                                    Set<Box> pts = new HashSet<>();
-                                    Box dummybox = createBox(unit, true, boxes);
-                                    pts.add(dummybox);
-                                    newout.get(leftName).addAll(pts);
-                                }
-                                else {
-                                    newout.get(leftName).addAll(new HashSet<>());
-                                }
-                            }
-                            else {
-                                if (fieldValues != null) {
-                                    newout.put(leftName,fieldValues);
-                                } 
-                                else if(box.dummy){
-                                    Set<Box> pts = new HashSet<>();
-                                    Box dummybox = createBox(unit, true, boxes);
-                                    pts.add(dummybox);
-                                    newout.put(leftName,pts);
-                                }
-                                else {
-                                    newout.put(leftName,new HashSet<>());
-                                }
-                            }
-                        }
-                    }
+                    int field = index.field(fieldRef.getField().getName());
+                    loadField(unit, leftName, baseLocal, field, newout, index);
                 }
                 else if (rightOp instanceof ArrayRef){
                     ArrayRef fieldRef = (ArrayRef) rightOp;
                     Local baseLocal = (Local) fieldRef.getBase();
-                    String fieldName = "[]";
-                    Set<Box> basePointsTo = newout.get(baseLocal.getName());
-                    if (basePointsTo != null) {
-                        for (Box box : basePointsTo) {
-                            Set<Box> fieldValues = box.fields.get(fieldName);
-                            if (newout.containsKey(leftName)) {
-                                if (fieldValues != null) {
-                                    newout.get(leftName).addAll(fieldValues);
-                                } 
-                                else if(box.dummy){
-                                    Set<Box> pts = new HashSet<>();
-                                    Box dummybox = createBox(unit, true, boxes);
-                                    pts.add(dummybox);
-                                    newout.get(leftName).addAll(pts);
-                                }
-                                else {
-                                    newout.get(leftName).addAll(new HashSet<>());
-                                }
-                            }
-                            else {
-                                if (fieldValues != null) {
-                                    newout.put(leftName,fieldValues);
-                                } 
-                                else if(box.dummy){
-                                    Set<Box> pts = new HashSet<>();
-                                    Box dummybox = createBox(unit, true, boxes);
-                                    pts.add(dummybox);
-                                    newout.put(leftName,pts);
-                                }
-                                else {
-                                    newout.put(leftName,new HashSet<>());
-                                }
-                            }
-                        }
-                    }
+                    int field = index.field("[]");
+                    loadField(unit, leftName, baseLocal, field, newout, index);
                 }
             }
             else if (leftOp instanceof InstanceFieldRef) {
                 InstanceFieldRef fieldRef = (InstanceFieldRef) leftOp;
                 Local baseLocal = (Local) fieldRef.getBase();
-                String fieldName = fieldRef.getField().getName();
-                Set<Box> rightPointsTo = new HashSet<>();
-                if (rightOp instanceof NewExpr) {
-                    Box box = createBox(unit, false, boxes);
-                    rightPointsTo.add(box);
-                }
-                else if (rightOp instanceof Local) {
-                    Local rightLocal = (Local) rightOp;
-                    rightPointsTo = newout.getOrDefault(rightLocal.getName(), new HashSet<>());
-                }
-                Set<Box> basePointsTo = newout.get(baseLocal.getName());
-                if (basePointsTo != null) {
-                    boolean baseEscape = false;
-                    for (Box box : basePointsTo) {
-                        if(box.escape){
-                            escapeBoxSet(rightPointsTo);
-                            baseEscape = true;
-                            break;
-                        }
-                    }
-                    for (Box box : basePointsTo) {
-                        if (box.fields.containsKey(fieldName)) {
-                            Set<Box> fieldPointsTo = box.fields.get(fieldName);
-                            if(baseEscape){
-                                escapeBoxSet(fieldPointsTo);
-                            }
-                            for(Box fieldbox : fieldPointsTo){
-                                if(fieldbox.escape == true) escapeBoxSet(rightPointsTo);
-                            }
-                            fieldPointsTo.addAll(rightPointsTo);
-                        }
-                        else if(box.dummy){
-                            Set<Box> pts = new HashSet<>(rightPointsTo);
-                            Box dummybox = createBox(unit, true, boxes);
-                            pts.add(dummybox);
-                            box.fields.put(fieldName, pts);
-                        }
-                        else{
-                            box.fields.put(fieldName, new HashSet<>(rightPointsTo));
-                        }
-                    }
-                }
+                int field = index.field(fieldRef.getField().getName());
+                storeField(unit, baseLocal, field, rightOp, newout, index);
             }
             else if (leftOp instanceof ArrayRef) {
                 ArrayRef fieldRef = (ArrayRef) leftOp;
                 Local baseLocal = (Local) fieldRef.getBase();
-                String fieldName = "[]";
-                Set<Box> rightPointsTo = new HashSet<>();
-                if (rightOp instanceof NewExpr) {
-                    Box box = createBox(unit, false, boxes);
-                    rightPointsTo.add(box);
-                }
-                else if (rightOp instanceof Local) {
-                    Local rightLocal = (Local) rightOp;
-                    rightPointsTo = newout.getOrDefault(rightLocal.getName(), new HashSet<>());
-                }
-                Set<Box> basePointsTo = newout.get(baseLocal.getName());
-                if (basePointsTo != null) {
-                    boolean baseEscape = false;
-                    for (Box box : basePointsTo) {
-                        if(box.escape){
-                            escapeBoxSet(rightPointsTo);
-                            baseEscape = true;
-                            break;
-                        }
-                    }
-                    for (Box box : basePointsTo) {
-                        if (box.fields.containsKey(fieldName)) {
-                            Set<Box> fieldPointsTo = box.fields.get(fieldName);
-                            if(baseEscape){
-                                escapeBoxSet(fieldPointsTo);
-                            }
-                            for(Box fieldbox : fieldPointsTo){
-                                if(fieldbox.escape == true) escapeBoxSet(rightPointsTo);
-                            }
-                            fieldPointsTo.addAll(rightPointsTo);
-                        }
-                        else if(box.dummy){
-                            Set<Box> pts = new HashSet<>(rightPointsTo);
-                            Box dummybox = createBox(unit, true, boxes);
-                            pts.add(dummybox);
-                            box.fields.put(fieldName, pts);
-                        }
-                        else{
-                            box.fields.put(fieldName, new HashSet<>(rightPointsTo));
-                        }
-                    }
-                }
-
+                int field = index.field("[]");
+                storeField(unit, baseLocal, field, rightOp, newout, index);
             }
         }
         else if (unit instanceof InvokeStmt) {
             InvokeStmt invokeStmt = (InvokeStmt) unit;
             InvokeExpr invokeExpr = invokeStmt.getInvokeExpr();
-            if (invokeExpr instanceof StaticInvokeExpr) {
+            if (summaries != null) {
+                applyCall(unit, invokeExpr, -1, newout, index);
+            }
+            else if (invokeExpr instanceof StaticInvokeExpr) {
                 StaticInvokeExpr staticInvokeExpr = (StaticInvokeExpr) invokeExpr;
-                for (Value arg : staticInvokeExpr.getArgs()) {
-                    markEscape(arg, newout);
+                for (int i = 0; i < staticInvokeExpr.getArgCount(); i++) {
+                    markEscape(staticInvokeExpr.getArg(i), unit, Box.Reason.ARGUMENT, newout, index);
                 }
             }
             else if (invokeExpr instanceof VirtualInvokeExpr) {
                 VirtualInvokeExpr virtualInvokeExpr = (VirtualInvokeExpr) invokeExpr;
                 Value base = virtualInvokeExpr.getBase();
                 if (base instanceof Local) {
-                    markEscape(base, newout);
+                    markEscape(base, unit, Box.Reason.RECEIVER, newout, index);
                 }
-                for (Value arg : virtualInvokeExpr.getArgs()) {
-                    markEscape(arg, newout);
+                for (int i = 0; i < virtualInvokeExpr.getArgCount(); i++) {
+                    markEscape(virtualInvokeExpr.getArg(i), unit, Box.Reason.ARGUMENT, newout, index);
                 }
             }
         } 
         else if (unit instanceof ReturnStmt) {
             ReturnStmt returnStmt = (ReturnStmt) unit;
             Value returnValue = returnStmt.getOp();
-            if (returnValue != null) {
-                markEscape(returnValue, newout);
+            if (index.summary) {
+                if (returnValue instanceof Local) {
+                    index.returned.or(newout.getOrEmpty(index.name(((Local) returnValue).getName())));
+                }
+            }
+            else if (returnValue != null) {
+                markEscape(returnValue, unit, Box.Reason.RETURN, newout, index);
             }
         }
 
-        return newout;
     }
 
-    private Box createBox(Unit unit, boolean dummy, SortedMap<Integer, Box> boxes){
-        int line = unit.getJavaSourceStartLineNumber();
-        if(dummy) line = - Math.abs(line);
-        if(boxes.containsKey(line)) {
-            return boxes.get(line);
+    // Apply the callee summaries at a call site; leftName is -1 when the
+    // result is not assigned. The result may be any returned argument or an
+    // unknown object.
+    private void applyCall(Unit unit, InvokeExpr invokeExpr, int leftName, PointsToMap newout, PointsToIndex index){
+        MethodSummary summary = summaries.summaryAt(unit, invokeExpr);
+        BitSet returned = index.work;
+        returned.clear();
+        if (invokeExpr instanceof InstanceInvokeExpr) {
+            Value base = ((InstanceInvokeExpr) invokeExpr).getBase();
+            if (summary.thisEscapes) {
+                markEscape(base, unit, Box.Reason.RECEIVER, newout, index);
+            }
+            if (summary.thisReturned && base instanceof Local) {
+                returned.or(newout.getOrEmpty(index.name(((Local) base).getName())));
+            }
+        }
+        for (int i = 0; i < invokeExpr.getArgCount(); i++) {
+            Value arg = invokeExpr.getArg(i);
+            if (summary.escapes(i)) {
+                markEscape(arg, unit, Box.Reason.ARGUMENT, newout, index);
+            }
+            if (summary.returned(i) && arg instanceof Local) {
+                returned.or(newout.getOrEmpty(index.name(((Local) arg).getName())));
+            }
+        }
+        if (leftName >= 0) {
+            Box dummybox = createBox(unit, true, index);
+            returned.set(dummybox.id);
+            newout.put(leftName, index.fromWork(leftName));
+        }
+    }
+
+    // left = base.field (or base[i]); weak update of left with the field contents
+    private void loadField(Unit unit, int leftName, Local baseLocal, int field, PointsToMap newout, PointsToIndex index){
+        BitSet basePointsTo = newout.get(index.name(baseLocal.getName()));
+        if (basePointsTo == null || basePointsTo.isEmpty()) return;
+        BitSet leftPointsTo = index.work;
+        leftPointsTo.clear();
+        BitSet old = newout.get(leftName);
+        if (old != null) leftPointsTo.or(old);
+        for (int id = basePointsTo.nextSetBit(0); id >= 0; id = basePointsTo.nextSetBit(id + 1)) {
+            Box box = index.box(id);
+            BitSet fieldValues = box.field(field);
+            if (fieldValues != null) {
+                leftPointsTo.or(fieldValues);
+            }
+            else if(box.dummy){
+                Box dummybox = createBox(unit, box, index);
+                leftPointsTo.set(dummybox.id);
+                // keep the link, so what the summary charges to the parameter
+                // includes the objects loaded from it
+                if (box.param) {
+                    BitSet pts = new BitSet();
+                    pts.set(dummybox.id);
+                    box.putField(field, pts);
+                    index.heapChanges++;
+                }
+            }
+        }
+        newout.put(leftName, index.fromWork(leftName));
+    }
+
+    // base.field = right (or base[i] = right); weak update of every base box
+    private void storeField(Unit unit, Local baseLocal, int field, Value rightOp, PointsToMap newout, PointsToIndex index){
+        BitSet rightPointsTo = PointsToMap.EMPTY;
+        if (rightOp instanceof NewExpr) {
+            Box box = createBox(unit, false, index);
+            rightPointsTo = new BitSet();
+            rightPointsTo.set(box.id);
+        }
+        else if (rightOp instanceof Local) {
+            Local rightLocal = (Local) rightOp;
+            rightPointsTo = newout.getOrEmpty(index.name(rightLocal.getName()));
+        }
+        BitSet basePointsTo = newout.get(index.name(baseLocal.getName()));
+        if (basePointsTo == null) return;
+        boolean baseEscape = false;
+        boolean baseParam = false;
+        for (int id = basePointsTo.nextSetBit(0); id >= 0; id = basePointsTo.nextSetBit(id + 1)) {
+            if(index.box(id).escape){
+                baseEscape = true;
+                break;
+            }
+            if(index.box(id).param) baseParam = true;
+        }
+        // in summary mode the caller may let a parameter object escape, and
+        // the stored object with it; what the field held stays the caller's
+        if (baseEscape || baseParam) {
+            escapeBoxSet(rightPointsTo, unit, Box.Reason.STORED, index);
+        }
+        for (int id = basePointsTo.nextSetBit(0); id >= 0; id = basePointsTo.nextSetBit(id + 1)) {
+            Box box = index.box(id);
+            BitSet fieldPointsTo = box.field(field);
+            if (fieldPointsTo != null) {
+                if(baseEscape){
+                    escapeBoxSet(fieldPointsTo, unit, Box.Reason.STORED, index);
+                }
+                for (int f = fieldPointsTo.nextSetBit(0); f >= 0; f = fieldPointsTo.nextSetBit(f + 1)) {
+                    if(index.box(f).escape) {
+                        escapeBoxSet(rightPointsTo, unit, Box.Reason.STORED, index);
+                        break;
+                    }
+                }
+                if (!PointsToMap.contains(fieldPointsTo, rightPointsTo)) {
+                    fieldPointsTo.or(rightPointsTo);
+                    index.heapChanges++;
+                }
+            }
+            else if(box.dummy){
+                BitSet pts = (BitSet) rightPointsTo.clone();
+                Box dummybox = createBox(unit, box, index);
+                pts.set(dummybox.id);
+                box.putField(field, pts);
+                index.heapChanges++;
+            }
+            else{
+                box.putField(field, (BitSet) rightPointsTo.clone());
+                index.heapChanges++;
+            }
+        }
+    }
+
+    private Box createBox(Unit unit, boolean dummy, PointsToIndex index){
+        return index.site(unit, dummy, 0);
+    }
+
+    // Unknown objects reached through a field of an unknown base box get a
+    // box per base, up to siteContexts of them per unit. Beyond fieldDepth
+    // loads a single box per method stands for all of them. In summary mode
+    // the objects reached from a parameter are parameter objects too; a box
+    // shared with other unknown objects escapes, and with it the parameters
+    // that reach it.
+    private Box createBox(Unit unit, Box base, PointsToIndex index){
+        int boxes = index.boxes.size();
+        Box box;
+        if (base.depth >= index.maxFieldDepth) {
+            box = index.deepBox(unit);
+        }
+        else {
+            box = index.site(unit, true, base.id + 1);
+            if (box.depth == 0) box.depth = base.depth + 1;
         }
-        else{
-            Box box = new Box(line, dummy);
-            boxes.put(line, box);
-            return box;
+        if (index.summary) {
+            if (base.param && index.boxes.size() > boxes) {
+                box.escape = false;
+                box.param = true;
+            }
+            else if (base.param != box.param) {
+                Box escaping = box.param ? box : base;
+                if (!escaping.escape) {
+                    BitSet pts = new BitSet();
+                    pts.set(escaping.id);
+                    escapeBoxSet(pts, unit, Box.Reason.STORED, index);
+                }
+            }
         }
+        return box;
     }
 
-    private boolean isLeftEscaping(Value leftOp, Map<String, Set<Box>> newout){
+    private boolean isLeftEscaping(Value leftOp, PointsToMap newout, PointsToIndex index){
         if (leftOp instanceof Local) {
             Local leftLocal = (Local) leftOp;
-            Set<Box> PointsTo = newout.getOrDefault(leftLocal.getName(), new HashSet<>());
-            for(Box box : PointsTo){
-                if(box.escape == true) return true;
+            BitSet PointsTo = newout.getOrEmpty(index.name(leftLocal.getName()));
+            for (int id = PointsTo.nextSetBit(0); id >= 0; id = PointsTo.nextSetBit(id + 1)) {
+                if(index.box(id).escape) return true;
             }
         }
         return false;
     }
 
-    private void markEscape(Value value, Map<String, Set<Box>> newout){
+    private void markEscape(Value value, Unit unit, Box.Reason reason, PointsToMap newout, PointsToIndex index){
         if (value instanceof Local) {
             Local valueLocal = (Local) value;
-            Set<Box> PointsTo = newout.getOrDefault(valueLocal.getName(), new HashSet<>());
-            escapeBoxSet(PointsTo);
+            BitSet PointsTo = newout.getOrEmpty(index.name(valueLocal.getName()));
+            escapeBoxSet(PointsTo, unit, reason, index);
         }
     }
 
-    private void escapeBoxSet(Set<Box> boxset){
-        for(Box box : boxset){
+    // Marks every box reachable from boxset through boxes that do not escape
+    // yet. Iterative, with the escape flag as visited set, so each box has
+    // its fields expanded at most once however deep the heap graph is. The
+    // boxes of boxset escape because of unit; the others record the box and
+    // field they were first reached through.
+    private void escapeBoxSet(BitSet boxset, Unit unit, Box.Reason reason, PointsToIndex index){
+        int first = boxset.nextSetBit(0);
+        while (first >= 0 && index.box(first).escape) first = boxset.nextSetBit(first + 1);
+        if (first < 0) return;
+        index.heapChanges++;
+        BitSet frontier = index.frontier;
+        frontier.clear();
+        frontier.or(boxset);
+        for (int id = frontier.nextSetBit(0); id >= 0; id = frontier.nextSetBit(0)) {
+            frontier.clear(id);
+            Box box = index.box(id);
             if(box.escape == true) continue;
             box.escape = true;
-            for (Map.Entry<String, Set<Box>> entry : box.fields.entrySet()) {
-                Set<Box> fieldSet = entry.getValue();
-                escapeBoxSet(fieldSet);
-            }
-        }
-    }
-
-    private void escapeBFS(Map<String, Set<Box>> newout){
-        Set<Box> visited = new HashSet<>();
-        Queue<Box> queue = new LinkedList<>();
-        for (Set<Box> boxes : newout.values()) {
-            queue.addAll(boxes);
-        }
-        while (!queue.isEmpty()) {
-            Box currentBox = queue.poll();
-            if (visited.contains(currentBox)) {
-                continue;
-            }
-            visited.add(currentBox);
-            if (currentBox.escape) {
-                for (Set<Box> neighborBoxes : currentBox.fields.values()) {
-                    queue.addAll(neighborBoxes);
-                    for (Box neighborBox : neighborBoxes) {
-                        neighborBox.escape = true;
-                    }
+            box.reason = reason;
+            box.cause = unit;
+            for (int i = 0; i < box.fieldIds.length; i++) {
+                BitSet fieldSet = box.fieldSets[i];
+                for (int f = fieldSet.nextSetBit(0); f >= 0; f = fieldSet.nextSetBit(f + 1)) {
+                    Box target = index.box(f);
+                    if (target.escape || target.via != null || boxset.get(f)) continue;
+                    target.via = box;
+                    target.viaField = box.fieldIds[i];
+                    frontier.set(f);
                 }
             }
         }
     }
-}
\ No newline at end of file
+}
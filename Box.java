@@ -0,0 +1,75 @@
+import java.util.*;
+import soot.Unit;
+
+// Abstract object of the points-to graph: an allocation site, or unknown
+// objects (dummy boxes) such as parameters, call results and their fields
+class Box {
+    static final int[] NO_IDS = new int[0];
+    static final BitSet[] NO_SETS = new BitSet[0];
+
+    // Why a box escapes, as written to the site report
+    enum Reason {
+        RETURN("return"), STATIC_FIELD("static-field"), ARGUMENT("call-argument"), RECEIVER("receiver"),
+        STORED("stored-into-escaping"), LOCAL("escaping-local");
+
+        final String name;
+
+        Reason(String name){
+            this.name = name;
+        }
+    }
+
+    int id;
+	int line;
+    // Points-to sets of the fields by field id (see PointsToIndex.field);
+    // boxes have few fields, so they are kept in two small parallel arrays
+    int[] fieldIds = NO_IDS;
+    BitSet[] fieldSets = NO_SETS;
+    boolean dummy;
+    boolean escape;
+    // In summary mode, a parameter or an object reached from one: it belongs
+    // to the caller, so it does not escape by itself
+    boolean param;
+    // Number of loads from a root (parameter, call result, ...) to this box
+    int depth;
+    // Statement that made the box escape, unset for dummy boxes, which start
+    // escaping. A box escaping along with another one was reached through
+    // field viaField of box via.
+    Reason reason;
+    Unit cause;
+    Box via;
+    int viaField;
+    Box(int id, int line, boolean dummy){
+        this.id = id;
+        this.line = line;
+        this.dummy = dummy;
+        if(dummy) escape = true;
+        else escape = false;
+    }
+    BitSet field(int field){
+        for (int i = 0; i < fieldIds.length; i++) {
+            if (fieldIds[i] == field) return fieldSets[i];
+        }
+        return null;
+    }
+    void putField(int field, BitSet set){
+        for (int i = 0; i < fieldIds.length; i++) {
+            if (fieldIds[i] == field) {
+                fieldSets[i] = set;
+                return;
+            }
+        }
+        fieldIds = Arrays.copyOf(fieldIds, fieldIds.length + 1);
+        fieldSets = Arrays.copyOf(fieldSets, fieldSets.length + 1);
+        fieldIds[fieldIds.length - 1] = field;
+        fieldSets[fieldSets.length - 1] = set;
+    }
+    @Override
+    public String toString(){
+        String s = Integer.toString(line);
+        s = s + "-" + escape + dummy;
+        for (int i = 0; i < fieldIds.length; i++)
+            s = s + " " + fieldIds[i] + " " + fieldSets[i];
+        return s;
+    }
+}
@@ -0,0 +1,120 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Results of a previous run per class, together with the classes whose
+// summaries those results used. Lets an incremental run re-analyse only the
+// changed classes and everything that (transitively) depends on them.
+//
+// File layout: int MAGIC, int version, int classes, then per class its name,
+// int deps, the dependency names, int calls, the virtual calls, int lines,
+// the printed lines and a boolean partial.
+class DependencyIndex {
+    static final int MAGIC = 0x5041324B;
+
+    static class ClassRecord {
+        Set<String> deps = ConcurrentHashMap.newKeySet();
+        // Methods called virtually, as "<declared receiver class: subsignature>";
+        // a new override in any subclass can change their targets
+        Set<String> calls = ConcurrentHashMap.newKeySet();
+        Set<String> lines = ConcurrentHashMap.newKeySet();
+        // Some method ran out of budget, so its line is missing and the class
+        // is analysed again on every run
+        volatile boolean partial = false;
+    }
+
+    Path file;
+    int version;
+    boolean valid = false;
+    Map<String, ClassRecord> classes = new ConcurrentHashMap<>();
+
+    DependencyIndex(Path file, int version){
+        this.file = file;
+        this.version = version;
+    }
+
+    // Load the index; valid is false when there is no usable previous run
+    static DependencyIndex load(Path file, int version){
+        DependencyIndex index = new DependencyIndex(file, version);
+        if (!Files.exists(file)) return index;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != version) return index;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                ClassRecord record = index.record(in.readUTF());
+                int deps = in.readInt();
+                for (int j = 0; j < deps; j++) record.deps.add(in.readUTF());
+                int calls = in.readInt();
+                for (int j = 0; j < calls; j++) record.calls.add(in.readUTF());
+                int lines = in.readInt();
+                for (int j = 0; j < lines; j++) record.lines.add(in.readUTF());
+                record.partial = in.readBoolean();
+            }
+            index.valid = true;
+        } catch (IOException e) {
+            System.err.println("ignoring unreadable index " + file + ": " + e);
+            index.classes.clear();
+        }
+        return index;
+    }
+
+    void save() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            outStream.writeInt(MAGIC);
+            outStream.writeInt(version);
+            outStream.writeInt(classes.size());
+            for (Map.Entry<String, ClassRecord> entry : new TreeMap<>(classes).entrySet()) {
+                ClassRecord record = entry.getValue();
+                outStream.writeUTF(entry.getKey());
+                outStream.writeInt(record.deps.size());
+                for (String dep : record.deps) outStream.writeUTF(dep);
+                outStream.writeInt(record.calls.size());
+                for (String call : record.calls) outStream.writeUTF(call);
+                outStream.writeInt(record.lines.size());
+                for (String line : record.lines) outStream.writeUTF(line);
+                outStream.writeBoolean(record.partial);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    ClassRecord record(String className){
+        return classes.computeIfAbsent(className, c -> new ClassRecord());
+    }
+
+    // Changed and partial classes plus every class that depends on one of them
+    Set<String> affected(Collection<String> changed){
+        Set<String> affected = new TreeSet<>(changed);
+        for (Map.Entry<String, ClassRecord> entry : classes.entrySet()) {
+            if (entry.getValue().partial) affected.add(entry.getKey());
+        }
+        addDependents(affected);
+        return affected;
+    }
+
+    // Add to affected the classes calling one of the given methods
+    // virtually, and every class that depends on them
+    void addCallers(Set<String> affected, Set<String> methods){
+        for (Map.Entry<String, ClassRecord> entry : classes.entrySet()) {
+            if (!Collections.disjoint(entry.getValue().calls, methods)) affected.add(entry.getKey());
+        }
+        addDependents(affected);
+    }
+
+    private void addDependents(Set<String> affected){
+        Map<String, Set<String>> dependents = new HashMap<>();
+        for (Map.Entry<String, ClassRecord> entry : classes.entrySet()) {
+            for (String dep : entry.getValue().deps) {
+                dependents.computeIfAbsent(dep, d -> new HashSet<>()).add(entry.getKey());
+            }
+        }
+        Deque<String> worklist = new ArrayDeque<>(affected);
+        while (!worklist.isEmpty()) {
+            for (String dependent : dependents.getOrDefault(worklist.remove(), Collections.emptySet())) {
+                if (affected.add(dependent)) worklist.add(dependent);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+import java.util.*;
+import soot.*;
+import soot.jimple.*;
+
+// Linear, flow-insensitive pre-pass over a body. Allocated objects are
+// followed through local copies and the heap; when none of them can reach a
+// place where the full analysis marks objects as escaping, the method prints
+// nothing and the fixpoint is skipped. Calls are treated as in transfer()
+// without summaries: constructor calls and other special or interface calls
+// let nothing escape. Anything unclear needs the full analysis, so the
+// printed lines are the same either way.
+class EscapePrepass {
+    // Locals an allocation may flow to, locals that may hold unknown (dummy)
+    // objects, and the copies between locals
+    Set<Local> allocated = new HashSet<>();
+    Set<Local> unknown = new HashSet<>();
+    Map<Local, List<Local>> copies = new HashMap<>();
+    // Locals whose objects the full analysis marks as escaping
+    Set<Local> escaping = new HashSet<>();
+    // Values stored into fields or arrays, with their bases
+    List<Value> storedValues = new ArrayList<>();
+    List<Local> storedBases = new ArrayList<>();
+    boolean loads = false;
+    boolean allocates = false;
+
+    // Whether the full analysis would print nothing for body; with
+    // summaries, calls need the full analysis
+    static boolean noEscape(Body body){
+        if (AnalysisTransformer.summaries != null) return false;
+        return new EscapePrepass().classify(body);
+    }
+
+    private boolean classify(Body body){
+        for (Unit unit : body.getUnits()) {
+            if (!scan(unit)) return false;
+        }
+        // the line of a constructor is never printed
+        if (!allocates || body.getMethod().getName().equals("<init>")) return true;
+
+        close(unknown);
+        close(allocated);
+        boolean storesAllocated = false;
+        boolean storesUnknown = false;
+        for (int i = 0; i < storedValues.size(); i++) {
+            Value value = storedValues.get(i);
+            if (value instanceof NewExpr || allocated.contains(value)) {
+                // the object escapes with an unknown base
+                if (unknown.contains(storedBases.get(i))) return false;
+                storesAllocated = true;
+            }
+            if (unknown.contains(value)) storesUnknown = true;
+        }
+        // allocated objects stored in the heap may be loaded anywhere, and may
+        // share a field with an unknown, escaping object
+        if (storesAllocated && (loads || storesUnknown)) return false;
+        for (Local local : allocated) {
+            // assigning an allocation to a local holding an escaping object
+            // lets it escape; unknown objects always escape
+            if (unknown.contains(local) || escaping.contains(local)) return false;
+        }
+        return true;
+    }
+
+    // Record the flows of one statement; false if the statement needs the
+    // full analysis by itself
+    private boolean scan(Unit unit){
+        if (unit instanceof IdentityStmt) {
+            IdentityStmt identityStmt = (IdentityStmt) unit;
+            Value rightOp = identityStmt.getRightOp();
+            if (identityStmt.getLeftOp() instanceof Local && (rightOp instanceof ParameterRef || rightOp instanceof ThisRef)) {
+                unknown.add((Local) identityStmt.getLeftOp());
+            }
+        }
+        else if (unit instanceof AssignStmt) {
+            AssignStmt assignStmt = (AssignStmt) unit;
+            Value leftOp = assignStmt.getLeftOp();
+            Value rightOp = assignStmt.getRightOp();
+            if (rightOp instanceof NewExpr) allocates = true;
+            if (leftOp instanceof StaticFieldRef) {
+                // the full analysis only handles locals here and fails otherwise
+                if (!(rightOp instanceof Local)) return false;
+                escaping.add((Local) rightOp);
+            }
+            else if (leftOp instanceof Local) {
+                Local leftLocal = (Local) leftOp;
+                if (rightOp instanceof NewExpr) {
+                    allocated.add(leftLocal);
+                }
+                else if (rightOp instanceof Local) {
+                    copies.computeIfAbsent((Local) rightOp, l -> new ArrayList<>()).add(leftLocal);
+                }
+                else if (rightOp instanceof StaticInvokeExpr || rightOp instanceof StaticFieldRef) {
+                    // the result of any other call leaves the local unchanged
+                    unknown.add(leftLocal);
+                }
+                else if (rightOp instanceof InstanceFieldRef || rightOp instanceof ArrayRef) {
+                    unknown.add(leftLocal);
+                    loads = true;
+                }
+            }
+            else if (leftOp instanceof InstanceFieldRef || leftOp instanceof ArrayRef) {
+                Value base = leftOp instanceof InstanceFieldRef ? ((InstanceFieldRef) leftOp).getBase() : ((ArrayRef) leftOp).getBase();
+                storedValues.add(rightOp);
+                storedBases.add((Local) base);
+            }
+        }
+        else if (unit instanceof ReturnStmt) {
+            addEscaping(((ReturnStmt) unit).getOp());
+        }
+        // the arguments of static calls escape, and the receiver and the
+        // arguments of virtual calls whose result is not assigned
+        if (unit instanceof Stmt && ((Stmt) unit).containsInvokeExpr()) {
+            InvokeExpr invokeExpr = ((Stmt) unit).getInvokeExpr();
+            boolean virtualStmt = unit instanceof InvokeStmt && invokeExpr instanceof VirtualInvokeExpr;
+            if (virtualStmt) {
+                addEscaping(((VirtualInvokeExpr) invokeExpr).getBase());
+            }
+            if (virtualStmt || invokeExpr instanceof StaticInvokeExpr) {
+                for (Value arg : invokeExpr.getArgs()) {
+                    addEscaping(arg);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void addEscaping(Value value){
+        if (value instanceof Local) escaping.add((Local) value);
+    }
+
+    // Extend a set of locals along the copies
+    private void close(Set<Local> locals){
+        Deque<Local> worklist = new ArrayDeque<>(locals);
+        while (!worklist.isEmpty()) {
+            for (Local target : copies.getOrDefault(worklist.remove(), Collections.emptyList())) {
+                if (locals.add(target)) worklist.add(target);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Cost of analysing one method. Only collected when AnalysisTransformer.metrics
+// is set; otherwise the analysis does a single null check per method and per
+// changed OUT set.
+class MethodMetrics {
+    static final String CSV_HEADER = "method,cfgSize,iterations,newOutCalls,boxes,peakPointsTo,wallMicros";
+
+    String method;
+    int cfgSize;
+    int iterations;
+    int newOutCalls;
+    int boxes;
+    int peakPointsTo;
+    long wallNanos;
+
+    MethodMetrics(String method){
+        this.method = method;
+    }
+
+    // Largest points-to set of a newly computed OUT
+    void observe(PointsToMap out){
+        for (int name = 0; name < out.size(); name++) {
+            BitSet set = out.get(name);
+            if (set != null) peakPointsTo = Math.max(peakPointsTo, set.cardinality());
+        }
+    }
+
+    String toCsv(){
+        return "\"" + method.replace("\"", "\"\"") + "\"," + cfgSize + "," + iterations + "," + newOutCalls + ","
+            + boxes + "," + peakPointsTo + "," + wallNanos / 1000;
+    }
+
+    String toJson(){
+        return "{\"method\":\"" + method.replace("\\", "\\\\").replace("\"", "\\\"") + "\",\"cfgSize\":" + cfgSize
+            + ",\"iterations\":" + iterations + ",\"newOutCalls\":" + newOutCalls + ",\"boxes\":" + boxes
+            + ",\"peakPointsTo\":" + peakPointsTo + ",\"wallMicros\":" + wallNanos / 1000 + "}";
+    }
+
+    // Collected metrics of a run, written as JSON lines for a .json or .jsonl
+    // file and as CSV otherwise
+    static class Recorder {
+        Queue<MethodMetrics> methods = new ConcurrentLinkedQueue<>();
+
+        void add(MethodMetrics metrics){
+            methods.add(metrics);
+        }
+
+        void write(Path file) throws IOException {
+            List<MethodMetrics> sorted = new ArrayList<>(methods);
+            sorted.sort(Comparator.comparing(m -> m.method));
+            boolean json = file.toString().endsWith(".json") || file.toString().endsWith(".jsonl");
+            try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file))) {
+                if (!json) writer.println(CSV_HEADER);
+                for (MethodMetrics m : sorted) {
+                    writer.println(json ? m.toJson() : m.toCsv());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+import java.util.*;
+
+// Escape summary of a method: which parameters (and the receiver) may
+// escape through the call, and which may be returned to the caller. A
+// parameter counts as escaping or returned when any object reachable from
+// it is.
+class MethodSummary {
+    boolean[] escapes;
+    boolean[] returned;
+    boolean thisEscapes;
+    boolean thisReturned;
+
+    MethodSummary(int params){
+        escapes = new boolean[params];
+        returned = new boolean[params];
+    }
+
+    // Summary of a method nothing is known about
+    static MethodSummary conservative(int params){
+        MethodSummary summary = new MethodSummary(params);
+        Arrays.fill(summary.escapes, true);
+        Arrays.fill(summary.returned, true);
+        summary.thisEscapes = true;
+        summary.thisReturned = true;
+        return summary;
+    }
+
+    boolean escapes(int param){
+        return param >= escapes.length || escapes[param];
+    }
+
+    boolean returned(int param){
+        return param >= returned.length || returned[param];
+    }
+
+    // Union with the summary of another possible target
+    void join(MethodSummary other){
+        int n = Math.max(escapes.length, other.escapes.length);
+        boolean[] e = new boolean[n];
+        boolean[] r = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            e[i] = (i < escapes.length && escapes[i]) || (i < other.escapes.length && other.escapes[i]);
+            r[i] = (i < returned.length && returned[i]) || (i < other.returned.length && other.returned[i]);
+        }
+        escapes = e;
+        returned = r;
+        thisEscapes |= other.thisEscapes;
+        thisReturned |= other.thisReturned;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if (!(o instanceof MethodSummary)) return false;
+        MethodSummary other = (MethodSummary) o;
+        return Arrays.equals(escapes, other.escapes) && Arrays.equals(returned, other.returned)
+            && thisEscapes == other.thisEscapes && thisReturned == other.thisReturned;
+    }
+
+    @Override
+    public int hashCode(){
+        return Arrays.hashCode(escapes) * 31 + Arrays.hashCode(returned) * 4 + (thisEscapes ? 2 : 0) + (thisReturned ? 1 : 0);
+    }
+
+    // Compact form, e.g. "e:t01 r:-10": t/- for the receiver, then one digit per parameter
+    @Override
+    public String toString(){
+        StringBuilder sb = new StringBuilder("e:");
+        sb.append(thisEscapes ? 't' : '-');
+        for (boolean b : escapes) sb.append(b ? '1' : '0');
+        sb.append(" r:").append(thisReturned ? 't' : '-');
+        for (boolean b : returned) sb.append(b ? '1' : '0');
+        return sb.toString();
+    }
+}
@@ -1,5 +1,21 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarFile;
 
 import soot.*;
 import soot.Body;
@@ -17,26 +33,319 @@ public class PA2 {
     public static void main(String[] args) {
         String classPath = "."; 	// change to appropriate path to the test class
         String dir = "./testcase";
+        boolean stats = false;
+        int threads = 1;
+        String cacheFile = null;
+        boolean summaries = false;
+        String indexFile = null;
+        List<String> changed = null;
+        String metricsFile = null;
+        String siteReportFile = null;
+        boolean batch = false;
+        boolean scalarReplace = false;
+        List<String> inputs = new ArrayList<>();
+        String outFile = null;
+        String mainClass = null;
+        boolean daemon = false;
+        int daemonPort = 0;
+        List<String> extraSootArgs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-stats")) stats = true;
+            else if (args[i].equals("-threads")) threads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-cache")) cacheFile = args[++i];
+            else if (args[i].equals("-summaries")) summaries = true;
+            else if (args[i].equals("-index")) indexFile = args[++i];
+            else if (args[i].equals("-changed")) changed = Arrays.asList(args[++i].split(","));
+            else if (args[i].equals("-site-contexts")) AnalysisTransformer.siteContexts = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-metrics")) metricsFile = args[++i];
+            else if (args[i].equals("-site-report")) siteReportFile = args[++i];
+            else if (args[i].equals("-propagation")) AnalysisTransformer.propagation = AnalysisTransformer.Propagation.valueOf(args[++i].toUpperCase());
+            else if (args[i].equals("-no-prepass")) AnalysisTransformer.prepass = false;
+            else if (args[i].equals("-field-depth")) AnalysisTransformer.fieldDepth = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-max-iterations")) AnalysisTransformer.maxIterations = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-max-boxes")) AnalysisTransformer.maxBoxes = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-scalar-replace")) scalarReplace = true;
+            else if (args[i].equals("-max-millis")) AnalysisTransformer.maxMillis = Long.parseLong(args[++i]);
+            else if (args[i].equals("-batch")) batch = true;
+            else if (args[i].equals("-in")) inputs.add(args[++i]);
+            else if (args[i].equals("-out")) outFile = args[++i];
+            else if (args[i].equals("-cp")) classPath = args[++i];
+            else if (args[i].equals("-main-class")) mainClass = args[++i];
+            else if (args[i].equals("-daemon")) daemon = true;
+            else if (args[i].equals("-daemon-port")) {
+                daemon = true;
+                daemonPort = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("--")) {
+                // everything after -- goes to Soot unchanged
+                extraSootArgs.addAll(Arrays.asList(args).subList(i + 1, args.length));
+                break;
+            }
+        }
+        // Batch mode analyses any jars and directories given with -in and
+        // streams the lines of each class as soon as it is done; the default
+        // run keeps the testcase directory, Test as main class and prints
+        // everything at the end
+        if (inputs.isEmpty()) inputs.add(dir);
+        if (daemon) {
+            // results are answered per request, see AnalysisDaemon
+            batch = false;
+            indexFile = null;
+            if (scalarReplace || threads != 1) {
+                System.err.println("-daemon analyses on one thread and writes no classes; drop -scalar-replace and -threads");
+                return;
+            }
+        }
+        if (mainClass == null && !batch) mainClass = "Test";
+
+        // Incremental run: with an index of a previous run, only the changed
+        // classes and the classes depending on them are analysed again
+        DependencyIndex dependencies = null;
+        Set<String> affected = null;
+        if (indexFile != null) {
+            int indexVersion = Objects.hash(AnalysisTransformer.ANALYSIS_VERSION, summaries, AnalysisTransformer.siteContexts, AnalysisTransformer.fieldDepth);
+            dependencies = DependencyIndex.load(Paths.get(indexFile), indexVersion);
+            if (changed != null && dependencies.valid) {
+                affected = dependencies.affected(changed);
+                for (String className : affected) {
+                    dependencies.classes.remove(className);
+                }
+            }
+            else {
+                dependencies.classes.clear();
+            }
+            AnalysisTransformer.dependencies = dependencies;
+            AnalysisTransformer.onlyClasses = affected;
+        }
         //Set up arguments for Soot
-        String[] sootArgs = {
+        List<String> sootArgs = new ArrayList<>(Arrays.asList(
             "-cp", classPath, "-pp", // sets the class path for Soot
-            "-keep-line-number", // preserves line numbers in input Java files  
-            "-main-class", "Test",	// specify the main class
+            "-keep-line-number" // preserves line numbers in input Java files  
             // "-p", "jb", "use-original-names:true",
-            "-process-dir", dir     // list the classes to analyse
-        };
+        ));
+        if (mainClass != null) {
+            sootArgs.add("-main-class");	// specify the main class
+            sootArgs.add(mainClass);
+        }
+        if (affected != null && !summaries) {
+            // without summaries no other class is needed, so only load the
+            // affected ones; a deleted class only loses its record
+            affected.removeIf(className -> !classFileExists(inputs, className));
+            sootArgs.set(1, classPath + File.pathSeparator + String.join(File.pathSeparator, inputs));
+            sootArgs.addAll(affected);
+        }
+        else {
+            for (String input : inputs) {
+                sootArgs.add("-process-dir");   // list the classes to analyse
+                sootArgs.add(input);
+            }
+        }
+        if (scalarReplace && threads != 1) {
+            // jtp.sr edits a body while other workers may still read it
+            // (summaries, constructors), so the bodies go one at a time
+            System.err.println("-scalar-replace runs on one thread, -threads " + threads + " ignored");
+            threads = 1;
+        }
+        // Soot transforms method bodies on a pool of this size; always passed,
+        // since Soot's own default uses every available processor
+        sootArgs.add("-num-threads");
+        sootArgs.add(Integer.toString(threads));
+        if (summaries) {
+            // whole-program mode builds the call graph used for the summaries
+            sootArgs.add("-w");
+        }
+        sootArgs.addAll(extraSootArgs);
+
+        if (metricsFile != null) {
+            AnalysisTransformer.metrics = new MethodMetrics.Recorder();
+        }
+        Writer outWriter = null;
+        if (batch) {
+            try {
+                outWriter = outFile != null ? Files.newBufferedWriter(Paths.get(outFile)) : new OutputStreamWriter(System.out);
+            } catch (IOException e) {
+                System.err.println("could not open output " + outFile + ": " + e);
+                return;
+            }
+            AnalysisTransformer.output = new ResultStream(outWriter);
+        }
+        Writer siteWriter = null;
+        if (siteReportFile != null) {
+            try {
+                siteWriter = Files.newBufferedWriter(Paths.get(siteReportFile));
+            } catch (IOException e) {
+                System.err.println("could not open site report " + siteReportFile + ": " + e);
+                return;
+            }
+            AnalysisTransformer.siteReport = new SiteReport(siteWriter);
+        }
+        if (cacheFile != null) {
+            AnalysisTransformer.cache = ResultCache.load(Paths.get(cacheFile), AnalysisTransformer.ANALYSIS_VERSION);
+        }
 
         // Create transformer for analysis
         AnalysisTransformer analysisTransformer = new AnalysisTransformer();
+        if (summaries) {
+            AnalysisTransformer.summaries = new SummaryEngine(analysisTransformer);
+        }
 
         // Add transformer to appropriate pack in PackManager; PackManager will run all packs when soot.Main.main is called
         PackManager.v().getPack("jtp").add(new Transform("jtp.dfa", analysisTransformer));
+        if (scalarReplace) {
+            // replaces non-escaping allocations in the classes Soot writes out
+            AnalysisTransformer.nonEscaping = new ConcurrentHashMap<>();
+            PackManager.v().getPack("jtp").add(new Transform("jtp.sr", new ScalarReplacer()));
+        }
+        if (affected != null && summaries) {
+            // a changed class may now override a method that unchanged classes
+            // call on one of its supertypes; that takes the loaded Scene, so
+            // their callers are added once the call graph is built
+            DependencyIndex index = dependencies;
+            Set<String> affectedClasses = affected;
+            List<String> changedClasses = changed;
+            PackManager.v().getPack("wjtp").add(new Transform("wjtp.deps", new SceneTransformer() {
+                @Override
+                protected void internalTransform(String phaseName, Map<String, String> options) {
+                    index.addCallers(affectedClasses, overridable(changedClasses));
+                    for (String className : affectedClasses) {
+                        index.classes.remove(className);
+                    }
+                }
+            }));
+        }
 
+        if (daemon) {
+            // keep the Scene loaded and answer requests until shut down
+            AnalysisDaemon analysisDaemon = new AnalysisDaemon(analysisTransformer, sootArgs.toArray(new String[0]));
+            analysisDaemon.setup();
+            try {
+                if (daemonPort > 0) analysisDaemon.serveSocket(daemonPort);
+                else analysisDaemon.serveStdin();
+            } catch (IOException e) {
+                System.err.println("daemon stopped: " + e);
+            }
+        }
         // Call Soot's main method with arguments
-        soot.Main.main(sootArgs);
+        else if (affected == null || !affected.isEmpty()) {
+            soot.Main.main(sootArgs.toArray(new String[0]));
+        }
+
+        if (AnalysisTransformer.cache != null) {
+            try {
+                AnalysisTransformer.cache.save();
+            } catch (IOException e) {
+                System.err.println("could not write cache " + cacheFile + ": " + e);
+            }
+        }
+
+        if (dependencies != null) {
+            // lines of classes that were not analysed again come from the previous run
+            if (affected != null) {
+                for (Map.Entry<String, DependencyIndex.ClassRecord> entry : new TreeMap<>(dependencies.classes).entrySet()) {
+                    if (affected.contains(entry.getKey())) continue;
+                    if (AnalysisTransformer.output != null) {
+                        AnalysisTransformer.output.write(new TreeSet<>(entry.getValue().lines));
+                    }
+                    else {
+                        analysisTransformer.strings.addAll(entry.getValue().lines);
+                    }
+                }
+            }
+            try {
+                dependencies.save();
+            } catch (IOException e) {
+                System.err.println("could not write index " + indexFile + ": " + e);
+            }
+        }
+
+        if (AnalysisTransformer.metrics != null) {
+            try {
+                AnalysisTransformer.metrics.write(Paths.get(metricsFile));
+            } catch (IOException e) {
+                System.err.println("could not write metrics " + metricsFile + ": " + e);
+            }
+        }
+
+        if (AnalysisTransformer.siteReport != null) {
+            AnalysisTransformer.siteReport.finish();
+            try {
+                siteWriter.close();
+            } catch (IOException e) {
+                System.err.println("could not write site report " + siteReportFile + ": " + e);
+            }
+        }
 
+        if (AnalysisTransformer.output != null) {
+            AnalysisTransformer.output.finish();
+            if (outFile != null) {
+                try {
+                    outWriter.close();
+                } catch (IOException e) {
+                    System.err.println("could not write output " + outFile + ": " + e);
+                }
+            }
+        }
         for(String s : analysisTransformer.strings){
             System.out.println(s);
         }
+        if (stats) {
+            System.err.println("methods: " + AnalysisTransformer.methods.sum() + ", worklist iterations: " + AnalysisTransformer.iterations.sum()
+                + ", skipped by pre-pass: " + AnalysisTransformer.prepassed.sum() + ", over budget: " + AnalysisTransformer.overBudget.sum());
+            if (scalarReplace) {
+                System.err.println("allocations replaced: " + ScalarReplacer.replaced.sum() + ", tagged: " + ScalarReplacer.tagged.sum());
+            }
+            if (AnalysisTransformer.output != null) {
+                System.err.println("classes streamed: " + AnalysisTransformer.output.classes);
+            }
+            if (AnalysisTransformer.siteReport != null) {
+                System.err.println("allocation sites reported: " + AnalysisTransformer.siteReport.sites);
+            }
+        }
+    }
+
+    // Signatures "<T: subsignature>" of the instance methods of the given
+    // classes, with T the class itself and each of its supertypes
+    private static Set<String> overridable(List<String> classNames){
+        Set<String> methods = new HashSet<>();
+        for (String className : classNames) {
+            SootClass cls = Scene.v().getSootClassUnsafe(className);
+            if (cls == null || cls.isPhantom()) continue;
+            List<SootClass> types = new ArrayList<>();
+            types.add(cls);
+            for (int i = 0; i < types.size(); i++) {
+                SootClass type = types.get(i);
+                if (type.hasSuperclass() && !types.contains(type.getSuperclass())) types.add(type.getSuperclass());
+                for (SootClass itf : type.getInterfaces()) {
+                    if (!types.contains(itf)) types.add(itf);
+                }
+            }
+            for (SootMethod method : cls.getMethods()) {
+                if (method.isStatic() || method.isPrivate() || method.isConstructor() || method.isStaticInitializer()) continue;
+                for (SootClass type : types) {
+                    methods.add("<" + type.getName() + ": " + method.getSubSignature() + ">");
+                }
+            }
+        }
+        return methods;
+    }
+
+    // Whether one of the inputs (directories or jars) holds the class
+    private static boolean classFileExists(List<String> inputs, String className){
+        String path = className.replace('.', '/') + ".class";
+        for (String input : inputs) {
+            File file = new File(input);
+            if (file.isDirectory()) {
+                if (new File(file, path).isFile()) return true;
+            }
+            else if (file.isFile()) {
+                try (JarFile jar = new JarFile(file)) {
+                    if (jar.getEntry(path) != null) return true;
+                } catch (IOException e) {
+                    // let Soot report the unreadable input
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 }
@@ -0,0 +1,201 @@
+import java.util.*;
+import soot.SootField;
+import soot.Unit;
+
+// Per-method interning of names (locals, and static fields by signature),
+// field names and boxes to dense ints, so points-to facts can be kept as
+// bitsets.
+class PointsToIndex {
+    // Allocation site of a box: the allocating unit, whether it stands for
+    // unknown objects, and an optional context (0 when there is none)
+    static class Site {
+        Unit unit;
+        boolean dummy;
+        int context;
+
+        Site(Unit unit, boolean dummy, int context){
+            this.unit = unit;
+            this.dummy = dummy;
+            this.context = context;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if (!(o instanceof Site)) return false;
+            Site other = (Site) o;
+            return unit == other.unit && dummy == other.dummy && context == other.context;
+        }
+
+        @Override
+        public int hashCode(){
+            return (System.identityHashCode(unit) * 31 + context) * 2 + (dummy ? 1 : 0);
+        }
+    }
+
+    Map<String, Integer> names = new HashMap<>();
+    Map<String, Integer> fields = new HashMap<>();
+    List<Box> boxes = new ArrayList<>();
+    Map<Site, Box> sites = new HashMap<>();
+    // Contexts in use per unit, at most maxContexts before sharing context 0
+    Map<Unit, Integer> contexts = new HashMap<>();
+    int maxContexts;
+    // Access path depth limit, and the box summarizing everything deeper
+    int maxFieldDepth;
+    Box deep;
+
+    // Summary mode: parameters (-1 for this) get their own non-escaping
+    // boxes, and returned values are collected instead of escaping
+    boolean summary;
+    // Solve with delta propagation instead of whole-map recomputation
+    boolean delta;
+    Map<Integer, Box> paramBoxes = new HashMap<>();
+    BitSet returned = new BitSet();
+
+    // Budgets of the fixpoint, 0 for none (deadline is a System.nanoTime
+    // value); exceeded names the first one that ran out
+    int maxIterations;
+    int maxBoxes;
+    long deadline;
+    String exceeded;
+
+    // Cost metrics of this method, null unless they are being recorded
+    MethodMetrics metrics;
+
+    // Number of changes to the boxes (an escape flag set, a field set grown)
+    // so far; the fixpoint is not reached while a pass still changes them
+    int heapChanges;
+
+    // Scratch state of the transfer function: the previous OUT of the unit
+    // being visited, whose sets are reused when a result equals them, and
+    // sets reused for every computation
+    PointsToMap hint;
+    BitSet work = new BitSet();
+    BitSet frontier = new BitSet();
+    Site probe = new Site(null, false, 0);
+
+    // Forget the method, keeping the allocated tables for the next one
+    void clear(){
+        names.clear();
+        fields.clear();
+        boxes.clear();
+        sites.clear();
+        contexts.clear();
+        deep = null;
+        summary = false;
+        paramBoxes.clear();
+        returned.clear();
+        maxIterations = 0;
+        maxBoxes = 0;
+        deadline = 0;
+        exceeded = null;
+        metrics = null;
+        heapChanges = 0;
+        hint = null;
+        work.clear();
+        frontier.clear();
+        probe.unit = null;
+    }
+
+    // The set {id} for name, reusing the previous set of name if equal
+    BitSet singleton(int name, int id){
+        BitSet old = hint != null ? hint.get(name) : null;
+        if (old != null && old.cardinality() == 1 && old.get(id)) return old;
+        BitSet set = new BitSet();
+        set.set(id);
+        return set;
+    }
+
+    // An unchanging copy of work for name, reusing the previous set of name
+    // if equal
+    BitSet fromWork(int name){
+        BitSet old = hint != null ? hint.get(name) : null;
+        if (work.equals(old)) return old;
+        return (BitSet) work.clone();
+    }
+
+    int name(String name){
+        Integer id = names.get(name);
+        if (id == null) {
+            id = names.size();
+            names.put(name, id);
+        }
+        return id;
+    }
+
+    // Name of a static field, interned by its signature so that it never
+    // shares an id with a local of the same name
+    int staticName(SootField field){
+        return name(field.getSignature());
+    }
+
+    int field(String field){
+        Integer id = fields.get(field);
+        if (id == null) {
+            id = fields.size();
+            fields.put(field, id);
+        }
+        return id;
+    }
+
+    int nameCount(){
+        return names.size();
+    }
+
+    // Whether the fixpoint has to stop after the given number of iterations
+    boolean overBudget(int iterations){
+        if (maxIterations > 0 && iterations >= maxIterations) exceeded = "iterations";
+        else if (maxBoxes > 0 && boxes.size() > maxBoxes) exceeded = "boxes";
+        else if (deadline != 0 && System.nanoTime() - deadline > 0) exceeded = "time";
+        return exceeded != null;
+    }
+
+    Box box(int id){
+        return boxes.get(id);
+    }
+
+    // The box of an allocation site, created on first use
+    Box site(Unit unit, boolean dummy, int context){
+        probe.unit = unit;
+        probe.dummy = dummy;
+        probe.context = context;
+        Box box = sites.get(probe);
+        if (box != null) return box;
+        if (context != 0) {
+            int used = contexts.getOrDefault(unit, 0);
+            if (used >= maxContexts) context = 0;
+            else contexts.put(unit, used + 1);
+            if (context == 0) {
+                probe.context = 0;
+                box = sites.get(probe);
+                if (box != null) return box;
+            }
+        }
+        box = new Box(boxes.size(), unit.getJavaSourceStartLineNumber(), dummy);
+        boxes.add(box);
+        sites.put(new Site(unit, dummy, context), box);
+        return box;
+    }
+
+    // The summary box of all unknown objects deeper than maxFieldDepth; loads
+    // from it give the box itself
+    Box deepBox(Unit unit){
+        if (deep == null) {
+            deep = new Box(boxes.size(), unit.getJavaSourceStartLineNumber(), true);
+            deep.depth = maxFieldDepth;
+            boxes.add(deep);
+        }
+        return deep;
+    }
+
+    Box paramBox(int param, int line){
+        Box box = paramBoxes.get(param);
+        if (box == null) {
+            box = new Box(boxes.size(), line, true);
+            box.escape = false;
+            box.param = true;
+            boxes.add(box);
+            paramBoxes.put(param, box);
+        }
+        return box;
+    }
+}
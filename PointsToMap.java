@@ -0,0 +1,177 @@
+import java.util.*;
+
+// Points-to facts of one program point: for every interned name (local or
+// static field) the set of box ids it may point to. A null slot means the
+// name is absent, which is not the same as being present with an empty set.
+//
+// Maps are persistent. A stored set is never changed, and the slots live in
+// chunks of CHUNK names that copies and joins share until a map writes to
+// one of them. A unit's OUT mostly equals its predecessor's, so neighbouring
+// units end up sharing nearly all of their storage.
+class PointsToMap {
+    static final int SHIFT = 5;
+    static final int CHUNK = 1 << SHIFT;
+    // Shared empty set; like every stored set it must not be changed
+    static final BitSet EMPTY = new BitSet();
+
+    BitSet[][] chunks;
+    // Chunks this map created itself and may write in place
+    boolean[] owned;
+    // Owned chunks released by clear(), emptied and reused before
+    // allocating new ones
+    List<BitSet[]> spare;
+
+    PointsToMap(int size){
+        int n = (size + CHUNK - 1) >> SHIFT;
+        chunks = new BitSet[n][];
+        owned = new boolean[n];
+    }
+
+    // Upper bound of the names in the map
+    int size(){
+        return chunks.length << SHIFT;
+    }
+
+    BitSet get(int name){
+        int c = name >> SHIFT;
+        if (c >= chunks.length || chunks[c] == null) return null;
+        return chunks[c][name & (CHUNK - 1)];
+    }
+
+    BitSet getOrEmpty(int name){
+        BitSet set = get(name);
+        return set != null ? set : EMPTY;
+    }
+
+    void put(int name, BitSet set){
+        chunk(name >> SHIFT)[name & (CHUNK - 1)] = set;
+    }
+
+    // Empty the map, keeping the chunks it owns for reuse; their sets are
+    // dropped so that no spare chunk holds on to a finished method
+    void clear(){
+        for (int c = 0; c < chunks.length; c++) {
+            if (owned[c]) {
+                if (spare == null) spare = new ArrayList<>();
+                Arrays.fill(chunks[c], null);
+                spare.add(chunks[c]);
+            }
+            chunks[c] = null;
+            owned[c] = false;
+        }
+    }
+
+    // Make this map a copy of other that shares all of its chunks
+    void assign(PointsToMap other){
+        if (chunks.length < other.chunks.length) {
+            chunks = new BitSet[other.chunks.length][];
+            owned = new boolean[other.chunks.length];
+        }
+        for (int c = 0; c < chunks.length; c++) {
+            chunks[c] = c < other.chunks.length ? other.chunks[c] : null;
+            owned[c] = false;
+        }
+        Arrays.fill(other.owned, false);
+    }
+
+    // Union of another map into this one; chunks missing here are shared.
+    // Sets of hint (typically the previous value of this map) are reused
+    // where they equal a union, so a join that reproduces an earlier result
+    // allocates nothing.
+    void join(PointsToMap other, PointsToMap hint){
+        for (int c = 0; c < other.chunks.length; c++) {
+            BitSet[] otherChunk = other.chunks[c];
+            if (otherChunk == null) continue;
+            grow(c + 1);
+            BitSet[] chunk = chunks[c];
+            if (chunk == otherChunk) continue;
+            if (chunk == null) {
+                chunks[c] = otherChunk;
+                owned[c] = false;
+                other.owned[c] = false;
+                continue;
+            }
+            for (int i = 0; i < CHUNK; i++) {
+                BitSet otherSet = otherChunk[i];
+                if (otherSet == null) continue;
+                BitSet set = chunks[c][i];
+                BitSet joined = union(set, otherSet, hint != null ? hint.get((c << SHIFT) + i) : null);
+                if (joined != set) chunk(c)[i] = joined;
+            }
+        }
+    }
+
+    // Union of two sets without changing either; one of them is returned
+    // as is when it already contains the other, and hint (may be null) when
+    // it equals a | b. a may be null.
+    static BitSet union(BitSet a, BitSet b, BitSet hint){
+        if (a == null || a == b || contains(b, a)) return b;
+        if (contains(a, b)) return a;
+        if (hint != null && contains(hint, a) && contains(hint, b) && covered(hint, a, b)) return hint;
+        BitSet joined = (BitSet) a.clone();
+        joined.or(b);
+        return joined;
+    }
+
+    // Whether every element of set is in a or b
+    private static boolean covered(BitSet set, BitSet a, BitSet b){
+        for (int id = set.nextSetBit(0); id >= 0; id = set.nextSetBit(id + 1)) {
+            if (!a.get(id) && !b.get(id)) return false;
+        }
+        return true;
+    }
+
+    static boolean contains(BitSet a, BitSet b){
+        if (b.length() > a.length()) return false;
+        for (int id = b.nextSetBit(0); id >= 0; id = b.nextSetBit(id + 1)) {
+            if (!a.get(id)) return false;
+        }
+        return true;
+    }
+
+    // Writable chunk c, copied first if it is shared
+    private BitSet[] chunk(int c){
+        grow(c + 1);
+        if (!owned[c]) {
+            BitSet[] chunk = spare == null || spare.isEmpty() ? new BitSet[CHUNK] : spare.remove(spare.size() - 1);
+            if (chunks[c] != null) System.arraycopy(chunks[c], 0, chunk, 0, CHUNK);
+            chunks[c] = chunk;
+            owned[c] = true;
+        }
+        return chunks[c];
+    }
+
+    private void grow(int n){
+        if (n <= chunks.length) return;
+        n = Math.max(n, chunks.length * 2);
+        chunks = Arrays.copyOf(chunks, n);
+        owned = Arrays.copyOf(owned, n);
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if (this == o) return true;
+        if (!(o instanceof PointsToMap)) return false;
+        PointsToMap other = (PointsToMap) o;
+        int n = Math.max(chunks.length, other.chunks.length);
+        for (int c = 0; c < n; c++) {
+            BitSet[] a = c < chunks.length ? chunks[c] : null;
+            BitSet[] b = c < other.chunks.length ? other.chunks[c] : null;
+            if (a == b) continue;
+            for (int i = 0; i < CHUNK; i++) {
+                if (!Objects.equals(a != null ? a[i] : null, b != null ? b[i] : null)) return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode(){
+        int h = 0;
+        for (int name = 0; name < size(); name++) {
+            BitSet set = get(name);
+            if (set != null) h += 31 * name + set.hashCode();
+        }
+        return h;
+    }
+}
@@ -0,0 +1,106 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import soot.Body;
+import soot.Unit;
+
+// On-disk cache from a hash of a method's Jimple body to the line that
+// AnalysisTransformer printed for it ("" when nothing escapes).
+//
+// File layout: int MAGIC, int version, int count, then count entries of
+// (long hash, int length, length bytes of UTF-8 result).
+class ResultCache {
+    static final int MAGIC = 0x50413243;
+
+    Path file;
+    int version;
+    Map<Long, String> results = new ConcurrentHashMap<>();
+    boolean dirty = false;
+
+    ResultCache(Path file, int version){
+        this.file = file;
+        this.version = version;
+    }
+
+    // Load the cache file; a missing, damaged or outdated file gives an empty cache
+    static ResultCache load(Path file, int version){
+        ResultCache cache = new ResultCache(file, version);
+        if (!Files.exists(file)) return cache;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != version) {
+                cache.dirty = true;
+                return cache;
+            }
+            int count = buf.getInt();
+            for (int i = 0; i < count; i++) {
+                long hash = buf.getLong();
+                byte[] bytes = new byte[buf.getInt()];
+                buf.get(bytes);
+                cache.results.put(hash, new String(bytes, StandardCharsets.UTF_8));
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("ignoring unreadable cache " + file + ": " + e);
+            cache.results.clear();
+            cache.dirty = true;
+        }
+        return cache;
+    }
+
+    // Write the cache back; a cache without a file (see AnalysisDaemon) only
+    // lives in memory
+    void save() throws IOException {
+        if (!dirty || file == null) return;
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            outStream.writeInt(MAGIC);
+            outStream.writeInt(version);
+            outStream.writeInt(results.size());
+            for (Map.Entry<Long, String> entry : results.entrySet()) {
+                byte[] bytes = entry.getValue().getBytes(StandardCharsets.UTF_8);
+                outStream.writeLong(entry.getKey());
+                outStream.writeInt(bytes.length);
+                outStream.write(bytes);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    String get(long hash){
+        return results.get(hash);
+    }
+
+    void put(long hash, String result){
+        results.put(hash, result);
+        dirty = true;
+    }
+
+    // Hash of the method signature, every unit with its source line and any
+    // extra input the printed result depends on (options, callee summaries)
+    static long hash(Body body, String extra){
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(body.getMethod().getSignature().getBytes(StandardCharsets.UTF_8));
+        for (Unit unit : body.getUnits()) {
+            String s = "\n" + unit.getJavaSourceStartLineNumber() + ":" + unit;
+            digest.update(s.getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update(extra.getBytes(StandardCharsets.UTF_8));
+        byte[] d = digest.digest();
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (d[i] & 0xff);
+        }
+        return h;
+    }
+}
@@ -0,0 +1,63 @@
+import java.io.*;
+import java.util.*;
+import soot.SootClass;
+import soot.SootMethod;
+
+// Batch mode output. The printed lines of a class are written as soon as its
+// last method has been analysed, so only classes still in progress are held
+// in memory and downstream tools see results while Soot is running.
+class ResultStream {
+    static class Pending {
+        int remaining;
+        SortedSet<String> lines = new TreeSet<>();
+
+        Pending(int remaining){
+            this.remaining = remaining;
+        }
+    }
+
+    PrintWriter writer;
+    Map<String, Pending> pending = new HashMap<>();
+    int classes = 0;
+
+    ResultStream(Writer writer){
+        this.writer = new PrintWriter(writer);
+    }
+
+    // Result of one method of cls ("" when nothing escapes)
+    synchronized void add(SootClass cls, String line){
+        Pending p = pending.computeIfAbsent(cls.getName(), c -> new Pending(bodies(cls)));
+        if (!line.isEmpty()) p.lines.add(line);
+        if (--p.remaining <= 0) {
+            pending.remove(cls.getName());
+            write(p.lines);
+        }
+    }
+
+    // Lines known without analysing their class again, e.g. from the index
+    synchronized void write(Collection<String> lines){
+        for (String line : lines) {
+            writer.println(line);
+        }
+        writer.flush();
+        classes++;
+    }
+
+    // Classes with methods that never reached the analysis, e.g. because
+    // Soot could not build their bodies
+    synchronized void finish(){
+        for (Pending p : new TreeMap<>(pending).values()) {
+            write(p.lines);
+        }
+        pending.clear();
+        writer.flush();
+    }
+
+    private static int bodies(SootClass cls){
+        int n = 0;
+        for (SootMethod method : cls.getMethods()) {
+            if (method.isConcrete()) n++;
+        }
+        return n;
+    }
+}
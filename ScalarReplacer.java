@@ -0,0 +1,229 @@
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import soot.*;
+import soot.jimple.*;
+import soot.tagkit.Tag;
+
+// Scalar replacement of allocations that do not escape. Runs after the
+// analysis in jtp, on the sites it kept in AnalysisTransformer.nonEscaping;
+// an allocation "a = new T" is replaced by one local per field of T when
+//   - the analysis finds its box not escaping,
+//   - a is defined only there and only used as the base of reads and writes
+//     of T's own fields and of one call of T's constructor,
+//   - T is an application class directly extending Object, without static
+//     initializer or finalizer, whose constructor only assigns its fields
+//     from parameters or constants.
+// Non-escaping allocations that fail the other conditions get a
+// NonEscapingTag. Soot writes the transformed classes as usual.
+class ScalarReplacer extends BodyTransformer {
+    static final String OBJECT_INIT = "<java.lang.Object: void <init>()>";
+
+    // Marks an allocation that does not escape but could not be replaced
+    static class NonEscapingTag implements Tag {
+        @Override
+        public String getName(){
+            return "NonEscaping";
+        }
+
+        @Override
+        public byte[] getValue(){
+            return new byte[0];
+        }
+
+        @Override
+        public String toString(){
+            return "non-escaping allocation";
+        }
+    }
+
+    // A field the constructor assigns: from parameter param, or from value
+    // when param is -1
+    static class Init {
+        SootField field;
+        int param;
+        Value value;
+
+        Init(SootField field, int param, Value value){
+            this.field = field;
+            this.param = param;
+            this.value = value;
+        }
+    }
+
+    static LongAdder replaced = new LongAdder();
+    static LongAdder tagged = new LongAdder();
+
+    @Override
+    protected void internalTransform(Body body, String phaseName, Map<String, String> options) {
+        Set<Unit> sites = AnalysisTransformer.nonEscaping.remove(body.getMethod());
+        if (sites == null) return;
+        for (Unit unit : sites) {
+            if (!(unit instanceof AssignStmt) || !(((AssignStmt) unit).getRightOp() instanceof NewExpr)) continue;
+            if (replace(body, (AssignStmt) unit)) {
+                replaced.increment();
+            }
+            else {
+                unit.addTag(new NonEscapingTag());
+                tagged.increment();
+            }
+        }
+    }
+
+    private boolean replace(Body body, AssignStmt alloc){
+        if (!(alloc.getLeftOp() instanceof Local)) return false;
+        Local local = (Local) alloc.getLeftOp();
+        SootClass cls = ((NewExpr) alloc.getRightOp()).getBaseType().getSootClass();
+        if (!replaceable(cls)) return false;
+
+        // every definition and use of the local
+        InvokeStmt constructor = null;
+        List<AssignStmt> accesses = new ArrayList<>();
+        for (Unit unit : body.getUnits()) {
+            if (unit == alloc) continue;
+            for (ValueBox box : unit.getDefBoxes()) {
+                if (box.getValue() == local) return false;
+            }
+            for (ValueBox box : unit.getUseBoxes()) {
+                if (box.getValue() != local) continue;
+                if (isConstructorCall(unit, local, cls)) {
+                    if (constructor != null && constructor != unit) return false;
+                    constructor = (InvokeStmt) unit;
+                }
+                else if (isFieldAccess(unit, local, cls)) {
+                    if (!accesses.contains(unit)) accesses.add((AssignStmt) unit);
+                }
+                else {
+                    return false;
+                }
+            }
+        }
+        if (constructor == null) return false;
+        List<Init> inits = constructorInits(constructor.getInvokeExpr().getMethod(), cls);
+        if (inits == null) return false;
+
+        // a local per instance field, starting with the default value
+        Map<SootField, Local> scalars = new HashMap<>();
+        List<Unit> defaults = new ArrayList<>();
+        for (SootField field : cls.getFields()) {
+            if (field.isStatic()) continue;
+            Local scalar = Jimple.v().newLocal(local.getName() + "$" + field.getName(), field.getType());
+            body.getLocals().add(scalar);
+            scalars.put(field, scalar);
+            defaults.add(Jimple.v().newAssignStmt(scalar, defaultValue(field.getType())));
+        }
+        replaceUnit(body, alloc, defaults);
+
+        List<Unit> assigns = new ArrayList<>();
+        InvokeExpr call = constructor.getInvokeExpr();
+        for (Init init : inits) {
+            Value value = init.param >= 0 ? call.getArg(init.param) : init.value;
+            assigns.add(Jimple.v().newAssignStmt(scalars.get(init.field), value));
+        }
+        replaceUnit(body, constructor, assigns);
+
+        for (AssignStmt access : accesses) {
+            if (access.getLeftOp() instanceof InstanceFieldRef) {
+                access.setLeftOp(scalars.get(((InstanceFieldRef) access.getLeftOp()).getField()));
+            }
+            else {
+                access.setRightOp(scalars.get(((InstanceFieldRef) access.getRightOp()).getField()));
+            }
+        }
+        return true;
+    }
+
+    // Classes whose allocation has no effect besides the constructor call
+    private boolean replaceable(SootClass cls){
+        return !cls.isPhantom() && cls.isApplicationClass()
+            && cls.hasSuperclass() && cls.getSuperclass().getName().equals("java.lang.Object")
+            && cls.getMethodUnsafe("void <clinit>()") == null
+            && cls.getMethodUnsafe("void finalize()") == null;
+    }
+
+    private boolean isConstructorCall(Unit unit, Local local, SootClass cls){
+        if (!(unit instanceof InvokeStmt)) return false;
+        InvokeExpr invokeExpr = ((InvokeStmt) unit).getInvokeExpr();
+        if (!(invokeExpr instanceof SpecialInvokeExpr) || ((SpecialInvokeExpr) invokeExpr).getBase() != local) return false;
+        SootMethod method = invokeExpr.getMethod();
+        if (!method.getName().equals("<init>") || method.getDeclaringClass() != cls) return false;
+        for (Value arg : invokeExpr.getArgs()) {
+            if (arg == local) return false;
+        }
+        return true;
+    }
+
+    // local.f = v or v = local.f, with f an instance field of cls and v not local
+    private boolean isFieldAccess(Unit unit, Local local, SootClass cls){
+        if (!(unit instanceof AssignStmt)) return false;
+        AssignStmt assignStmt = (AssignStmt) unit;
+        Value leftOp = assignStmt.getLeftOp();
+        Value rightOp = assignStmt.getRightOp();
+        InstanceFieldRef fieldRef;
+        if (leftOp instanceof InstanceFieldRef && rightOp != local) fieldRef = (InstanceFieldRef) leftOp;
+        else if (rightOp instanceof InstanceFieldRef) fieldRef = (InstanceFieldRef) rightOp;
+        else return false;
+        return fieldRef.getBase() == local && fieldRef.getField().getDeclaringClass() == cls;
+    }
+
+    // The fields a constructor assigns, or null if it does anything else
+    private List<Init> constructorInits(SootMethod constructor, SootClass cls){
+        if (!constructor.isConcrete()) return null;
+        Body body;
+        try {
+            body = constructor.retrieveActiveBody();
+        } catch (RuntimeException e) {
+            return null;
+        }
+        Local thisLocal = null;
+        Map<Local, Integer> params = new HashMap<>();
+        List<Init> inits = new ArrayList<>();
+        for (Unit unit : body.getUnits()) {
+            if (unit instanceof IdentityStmt) {
+                IdentityStmt identityStmt = (IdentityStmt) unit;
+                Value rightOp = identityStmt.getRightOp();
+                if (rightOp instanceof ThisRef) thisLocal = (Local) identityStmt.getLeftOp();
+                else if (rightOp instanceof ParameterRef) params.put((Local) identityStmt.getLeftOp(), ((ParameterRef) rightOp).getIndex());
+                else return null;
+            }
+            else if (unit instanceof InvokeStmt) {
+                InvokeExpr invokeExpr = ((InvokeStmt) unit).getInvokeExpr();
+                if (!(invokeExpr instanceof SpecialInvokeExpr) || ((SpecialInvokeExpr) invokeExpr).getBase() != thisLocal
+                    || !invokeExpr.getMethod().getSignature().equals(OBJECT_INIT)) return null;
+            }
+            else if (unit instanceof AssignStmt) {
+                AssignStmt assignStmt = (AssignStmt) unit;
+                if (!(assignStmt.getLeftOp() instanceof InstanceFieldRef)) return null;
+                InstanceFieldRef fieldRef = (InstanceFieldRef) assignStmt.getLeftOp();
+                SootField field = fieldRef.getField();
+                if (fieldRef.getBase() != thisLocal || field.getDeclaringClass() != cls) return null;
+                Value rightOp = assignStmt.getRightOp();
+                if (rightOp instanceof Constant) inits.add(new Init(field, -1, rightOp));
+                else if (params.containsKey(rightOp)) inits.add(new Init(field, params.get(rightOp), null));
+                else return null;
+            }
+            else if (!(unit instanceof ReturnVoidStmt)) {
+                return null;
+            }
+        }
+        return inits;
+    }
+
+    private static Value defaultValue(Type type){
+        if (type instanceof LongType) return LongConstant.v(0);
+        if (type instanceof FloatType) return FloatConstant.v(0);
+        if (type instanceof DoubleType) return DoubleConstant.v(0);
+        if (type instanceof PrimType) return IntConstant.v(0);
+        return NullConstant.v();
+    }
+
+    // Replace a unit by a list of units with the same line; jumps to the
+    // unit go to the first of them
+    private static void replaceUnit(Body body, Unit unit, List<Unit> replacement){
+        if (replacement.isEmpty()) replacement.add(Jimple.v().newNopStmt());
+        for (Unit u : replacement) {
+            u.addAllTagsOf(unit);
+        }
+        body.getUnits().insertBefore(replacement, unit);
+        body.getUnits().remove(unit);
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.*;
+import java.util.*;
+import soot.*;
+import soot.jimple.*;
+
+// Per-site report as JSON Lines: one object for every allocation site the
+// analysis reached, constructors included, e.g.
+//   {"method":"<A: B m()>","line":12,"type":"B","escapes":true,
+//    "reason":"return","path":[{"line":15,"stmt":"return r2"},{"site":14,"field":"next"}]}
+// path starts at the statement that made the object escape and follows
+// the fields from the object it concerned down to this site. The lines of
+// a method are written as soon as it has been analysed, so nothing is held
+// back for the rest of the program.
+class SiteReport {
+    PrintWriter writer;
+    long sites = 0;
+
+    SiteReport(Writer writer){
+        this.writer = new PrintWriter(writer);
+    }
+
+    synchronized void write(List<String> records){
+        for (String record : records) {
+            writer.println(record);
+        }
+        sites += records.size();
+    }
+
+    synchronized void finish(){
+        writer.flush();
+    }
+
+    // Records of the allocation sites of an analysed body, in unit order
+    static List<String> records(Body body, PointsToIndex index){
+        String[] fieldNames = new String[index.fields.size()];
+        for (Map.Entry<String, Integer> entry : index.fields.entrySet()) {
+            fieldNames[entry.getValue()] = entry.getKey();
+        }
+        String method = quote(body.getMethod().getSignature());
+        List<String> records = new ArrayList<>();
+        PointsToIndex.Site site = new PointsToIndex.Site(null, false, 0);
+        for (Unit unit : body.getUnits()) {
+            Value allocation = allocation(unit);
+            if (allocation == null) continue;
+            site.unit = unit;
+            Box box = index.sites.get(site);
+            if (box == null) continue;
+            StringBuilder record = start(method, unit, allocation);
+            record.append(",\"escapes\":").append(box.escape);
+            if (box.escape) {
+                record.append(",\"reason\":").append(quote(box.reason.name)).append(",\"path\":[");
+                record.append("{\"line\":").append(box.cause.getJavaSourceStartLineNumber())
+                    .append(",\"stmt\":").append(quote(box.cause.toString())).append('}');
+                List<String> steps = new ArrayList<>();
+                for (Box b = box; b.via != null; b = b.via) {
+                    steps.add(",{\"site\":" + b.via.line + ",\"field\":" + quote(fieldNames[b.viaField]) + "}");
+                }
+                for (int i = steps.size() - 1; i >= 0; i--) {
+                    record.append(steps.get(i));
+                }
+                record.append(']');
+            }
+            records.add(record.append('}').toString());
+        }
+        return records;
+    }
+
+    // Every allocation site escaping, for a body whose budget ran out
+    static List<String> conservative(Body body, String exceeded){
+        String method = quote(body.getMethod().getSignature());
+        List<String> records = new ArrayList<>();
+        for (Unit unit : body.getUnits()) {
+            Value allocation = allocation(unit);
+            if (allocation == null) continue;
+            records.add(start(method, unit, allocation).append(",\"escapes\":true,\"reason\":\"budget\",\"budget\":")
+                .append(quote(exceeded)).append('}').toString());
+        }
+        return records;
+    }
+
+    // The allocation of a unit that gets a box of its own, if any
+    private static Value allocation(Unit unit){
+        if (!(unit instanceof AssignStmt)) return null;
+        Value rightOp = ((AssignStmt) unit).getRightOp();
+        return rightOp instanceof NewExpr ? rightOp : null;
+    }
+
+    private static StringBuilder start(String method, Unit unit, Value allocation){
+        return new StringBuilder("{\"method\":").append(method)
+            .append(",\"line\":").append(unit.getJavaSourceStartLineNumber())
+            .append(",\"type\":").append(quote(((NewExpr) allocation).getBaseType().toString()));
+    }
+
+    static String quote(String s){
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') quoted.append('\\').append(c);
+            else if (c < 0x20) quoted.append(String.format("\\u%04x", (int) c));
+            else quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,201 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import soot.*;
+import soot.jimple.*;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
+
+// Bottom-up escape summaries over the call graph. Summaries are computed on
+// demand: the first lookup of a method summarises everything it can reach,
+// one strongly connected component at a time with callees first, iterating
+// each recursive component to a fixpoint.
+//
+// Only application methods with bodies are analysed; library methods and
+// unresolved calls get the conservative summary.
+class SummaryEngine {
+    static final String OBJECT_INIT = "<java.lang.Object: void <init>()>";
+
+    AnalysisTransformer analysis;
+    Map<SootMethod, MethodSummary> summaries = new HashMap<>();
+    // Methods of the component being solved, whose summaries may still grow
+    Set<SootMethod> provisional = new HashSet<>();
+    // Joined summaries of call sites whose targets all have their final
+    // summary; read without the lock on every visit of a call site
+    Map<Unit, MethodSummary> siteSummaries = new ConcurrentHashMap<>();
+
+    SummaryEngine(AnalysisTransformer analysis){
+        this.analysis = analysis;
+    }
+
+    // Joined summary of all possible targets of a call site. The lock is
+    // only taken the first time, to summarise the targets.
+    MethodSummary summaryAt(Unit unit, InvokeExpr invokeExpr){
+        MethodSummary summary = siteSummaries.get(unit);
+        if (summary != null) return summary;
+        synchronized (this) {
+            List<SootMethod> targets = targets(unit, invokeExpr);
+            if (targets == null) {
+                summary = MethodSummary.conservative(invokeExpr.getArgCount());
+            }
+            else {
+                summary = new MethodSummary(invokeExpr.getArgCount());
+                for (SootMethod target : targets) {
+                    summary.join(summaryOf(target));
+                }
+                // within a recursive component the summary is not final yet
+                for (SootMethod target : targets) {
+                    if (provisional.contains(target)) return summary;
+                }
+            }
+            siteSummaries.put(unit, summary);
+            return summary;
+        }
+    }
+
+    synchronized MethodSummary summaryOf(SootMethod method){
+        MethodSummary summary = summaries.get(method);
+        if (summary == null) {
+            summarizeFrom(method);
+            summary = summaries.get(method);
+        }
+        return summary;
+    }
+
+    // Possible callees of a call site, or null if they are not known
+    List<SootMethod> targets(Unit unit, InvokeExpr invokeExpr){
+        try {
+            if (Scene.v().hasCallGraph()) {
+                CallGraph cg = Scene.v().getCallGraph();
+                List<SootMethod> targets = new ArrayList<>();
+                for (Iterator<Edge> it = cg.edgesOutOf(unit); it.hasNext(); ) {
+                    Edge edge = it.next();
+                    if (edge.isExplicit()) targets.add(edge.tgt());
+                }
+                if (!targets.isEmpty()) return targets;
+            }
+            if (invokeExpr instanceof StaticInvokeExpr || invokeExpr instanceof SpecialInvokeExpr) {
+                return Collections.singletonList(invokeExpr.getMethod());
+            }
+        } catch (RuntimeException e) {
+            // unresolvable method reference
+        }
+        return null;
+    }
+
+    private Body bodyOf(SootMethod method){
+        if (!method.isConcrete() || method.isPhantom()) return null;
+        if (!method.getDeclaringClass().isApplicationClass()) return null;
+        try {
+            return method.retrieveActiveBody();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private List<SootMethod> callees(Body body){
+        List<SootMethod> callees = new ArrayList<>();
+        for (Unit unit : body.getUnits()) {
+            Stmt stmt = (Stmt) unit;
+            if (!stmt.containsInvokeExpr()) continue;
+            List<SootMethod> targets = targets(unit, stmt.getInvokeExpr());
+            if (targets != null) callees.addAll(targets);
+        }
+        return callees;
+    }
+
+    // Iterative Tarjan over methods without a summary yet, summarising each
+    // component as soon as it is complete (callees before callers)
+    private void summarizeFrom(SootMethod root){
+        Map<SootMethod, Integer> order = new HashMap<>();
+        Map<SootMethod, Integer> low = new HashMap<>();
+        Map<SootMethod, Body> bodies = new HashMap<>();
+        Set<SootMethod> selfRecursive = new HashSet<>();
+        Deque<SootMethod> sccStack = new ArrayDeque<>();
+        Set<SootMethod> onStack = new HashSet<>();
+        Deque<SootMethod> callStack = new ArrayDeque<>();
+        Deque<Iterator<SootMethod>> calleeIts = new ArrayDeque<>();
+
+        if (!enter(root, order, low, bodies, sccStack, onStack)) return;
+        callStack.push(root);
+        calleeIts.push(callees(bodies.get(root)).iterator());
+        while (!callStack.isEmpty()) {
+            SootMethod method = callStack.peek();
+            Iterator<SootMethod> it = calleeIts.peek();
+            if (it.hasNext()) {
+                SootMethod callee = it.next();
+                if (callee == method) selfRecursive.add(method);
+                if (!order.containsKey(callee)) {
+                    if (enter(callee, order, low, bodies, sccStack, onStack)) {
+                        callStack.push(callee);
+                        calleeIts.push(callees(bodies.get(callee)).iterator());
+                    }
+                } else if (onStack.contains(callee)) {
+                    low.put(method, Math.min(low.get(method), order.get(callee)));
+                }
+                continue;
+            }
+            callStack.pop();
+            calleeIts.pop();
+            if (!callStack.isEmpty()) {
+                SootMethod caller = callStack.peek();
+                low.put(caller, Math.min(low.get(caller), low.get(method)));
+            }
+            if (low.get(method).equals(order.get(method))) {
+                List<SootMethod> scc = new ArrayList<>();
+                SootMethod member;
+                do {
+                    member = sccStack.pop();
+                    onStack.remove(member);
+                    scc.add(member);
+                } while (member != method);
+                boolean recursive = scc.size() > 1 || selfRecursive.contains(method);
+                solve(scc, bodies, recursive);
+            }
+        }
+    }
+
+    // Number a method for Tarjan; methods that are already summarised or
+    // cannot be analysed get their summary directly and are not entered
+    private boolean enter(SootMethod method, Map<SootMethod, Integer> order, Map<SootMethod, Integer> low,
+                          Map<SootMethod, Body> bodies, Deque<SootMethod> sccStack, Set<SootMethod> onStack){
+        if (summaries.containsKey(method)) return false;
+        if (method.getSignature().equals(OBJECT_INIT)) {
+            summaries.put(method, new MethodSummary(0));
+            return false;
+        }
+        Body body = bodyOf(method);
+        if (body == null) {
+            summaries.put(method, MethodSummary.conservative(method.getParameterCount()));
+            return false;
+        }
+        bodies.put(method, body);
+        order.put(method, order.size());
+        low.put(method, order.get(method));
+        sccStack.push(method);
+        onStack.add(method);
+        return true;
+    }
+
+    // Summaries only grow, so each component reaches its fixpoint
+    private void solve(List<SootMethod> scc, Map<SootMethod, Body> bodies, boolean recursive){
+        for (SootMethod method : scc) {
+            summaries.put(method, new MethodSummary(method.getParameterCount()));
+        }
+        provisional.addAll(scc);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (SootMethod method : scc) {
+                MethodSummary old = summaries.get(method);
+                MethodSummary summary = analysis.summarize(bodies.get(method));
+                summary.join(old);
+                if (!summary.equals(old)) {
+                    summaries.put(method, summary);
+                    changed = true;
+                }
+            }
+            if (!recursive) break;
+        }
+        provisional.removeAll(scc);
+    }
+}
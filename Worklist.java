@@ -0,0 +1,83 @@
+import java.util.*;
+import soot.Unit;
+import soot.toolkits.graph.DirectedGraph;
+
+// Worklist that hands out units in reverse postorder of the CFG and holds
+// each unit at most once. Units not reachable from the heads are numbered
+// after the reachable ones, in graph iteration order.
+class Worklist {
+    Unit[] order = new Unit[0];
+    Map<Unit, Integer> position = new HashMap<>();
+    BitSet pending = new BitSet();
+    int iterations;
+
+    // Buffers of the depth-first search, kept for the next reset
+    private List<Unit> postorder = new ArrayList<>();
+    private Set<Unit> visited = new HashSet<>();
+    private Deque<Unit> stack = new ArrayDeque<>();
+    private Deque<Iterator<Unit>> succs = new ArrayDeque<>();
+
+    // Empty worklist for another graph
+    void reset(DirectedGraph<Unit> cfg){
+        postorder.clear();
+        visited.clear();
+        position.clear();
+        pending.clear();
+        iterations = 0;
+        for (Unit head : cfg.getHeads()) {
+            if (!visited.add(head)) continue;
+            stack.push(head);
+            succs.push(cfg.getSuccsOf(head).iterator());
+            while (!stack.isEmpty()) {
+                Iterator<Unit> it = succs.peek();
+                if (it.hasNext()) {
+                    Unit succ = it.next();
+                    if (visited.add(succ)) {
+                        stack.push(succ);
+                        succs.push(cfg.getSuccsOf(succ).iterator());
+                    }
+                } else {
+                    postorder.add(stack.pop());
+                    succs.pop();
+                }
+            }
+        }
+        Collections.reverse(postorder);
+        for (Unit unit : cfg) {
+            if (!visited.contains(unit)) postorder.add(unit);
+        }
+        order = postorder.toArray(order);
+        for (int i = 0; i < postorder.size(); i++) {
+            position.put(order[i], i);
+        }
+        postorder.clear();
+        visited.clear();
+    }
+
+    // Drop the references to the last graph
+    void clear(){
+        Arrays.fill(order, null);
+        position.clear();
+        pending.clear();
+    }
+
+    void add(Unit unit){
+        pending.set(position.get(unit));
+    }
+
+    void addAll(List<Unit> units){
+        for (int i = 0; i < units.size(); i++) add(units.get(i));
+    }
+
+    boolean isEmpty(){
+        return pending.isEmpty();
+    }
+
+    // Earliest pending unit in reverse postorder
+    Unit remove(){
+        int i = pending.nextSetBit(0);
+        pending.clear(i);
+        iterations++;
+        return order[i];
+    }
+}
@@ -0,0 +1,39 @@
+package bench;
+
+import java.util.*;
+import soot.BodyTransformer;
+
+// The analysis classes live in the unnamed package, which code in a named
+// package (as JMH requires) cannot refer to, so they are reached by name.
+class Analysis {
+    static BodyTransformer transformer() throws ReflectiveOperationException {
+        return (BodyTransformer) Class.forName("AnalysisTransformer").getDeclaredConstructor().newInstance();
+    }
+
+    @SuppressWarnings("unchecked")
+    static Set<String> results() {
+        try {
+            return (Set<String>) Class.forName("AnalysisTransformer").getField("strings").get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Set a public static option of AnalysisTransformer; an enum option
+    // takes the name of its constant
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static void set(String option, Object value) throws ReflectiveOperationException {
+        java.lang.reflect.Field field = Class.forName("AnalysisTransformer").getField(option);
+        if (field.getType().isEnum()) value = Enum.valueOf((Class<Enum>) field.getType(), (String) value);
+        field.set(null, value);
+    }
+
+    // Methods the pre-pass has skipped so far
+    static long prepassed() throws ReflectiveOperationException {
+        return ((java.util.concurrent.atomic.LongAdder) Class.forName("AnalysisTransformer").getField("prepassed").get(null)).sum();
+    }
+
+    static void runPA2(String[] args) throws ReflectiveOperationException {
+        Class.forName("PA2").getMethod("main", String[].class).invoke(null, (Object) args);
+    }
+}
@@ -0,0 +1,23 @@
+package bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the benchmarks with the GC profiler, so allocation rate per operation
+// is reported next to the timings. Extra arguments are passed to JMH, e.g.
+// "EscapeAnalysisBenchmark -p shape=fields".
+//
+// Build from the repository root with soot and JMH (core and the annotation
+// processor) on the class path:
+//   javac -cp <soot.jar>:<jmh jars> -d build *.java bench/*.java
+//   java -cp build:<soot.jar>:<jmh jars> bench.BenchmarkMain
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
@@ -0,0 +1,41 @@
+package bench;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import soot.Body;
+import soot.BodyTransformer;
+
+// Time to analyse one synthetic method body with AnalysisTransformer,
+// across body shapes and sizes.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EscapeAnalysisBenchmark {
+    static final Map<String, String> OPTIONS = Collections.singletonMap("enabled", "true");
+
+    @Param({"straight", "loops", "arrays", "fields"})
+    public String shape;
+
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    BodyTransformer analysis;
+    Body body;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        body = new SyntheticBodies().build(shape, size);
+        analysis = Analysis.transformer();
+    }
+
+    @Benchmark
+    public void analyzeMethod(Blackhole bh){
+        analysis.transform(body, "jtp.dfa", OPTIONS);
+        bh.consume(Analysis.results().size());
+    }
+}
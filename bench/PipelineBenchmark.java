@@ -0,0 +1,42 @@
+package bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import soot.G;
+
+// One complete PA2 run (Soot startup, body construction, analysis) over
+// ./testcase, with the printed lines discarded. Run from the directory that
+// holds the testcase classes.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PipelineBenchmark {
+    @Param({"1", "4"})
+    public int threads;
+
+    PrintStream stdout;
+
+    @Setup(Level.Invocation)
+    public void reset(){
+        G.reset();
+        Analysis.results().clear();
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Invocation)
+    public void restore(){
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public int pa2() throws ReflectiveOperationException {
+        Analysis.runPA2(new String[] {"-threads", Integer.toString(threads)});
+        return Analysis.results().size();
+    }
+}
@@ -0,0 +1,159 @@
+package bench;
+
+import java.util.*;
+import soot.*;
+import soot.jimple.*;
+import soot.options.Options;
+import soot.tagkit.LineNumberTag;
+
+// Builds Jimple bodies of a given shape and size for the benchmarks. Every
+// unit gets its own line number so escaping sites show up in the report.
+//
+//   straight  independent allocations, every other one passed to a call
+//   loops     three nested loops building a list, stored to a static field
+//   arrays    allocations stored into and read back from an array that a
+//             call returns (a newarray has no box, so its elements would
+//             not be tracked at all)
+//   fields    a chain of objects linked through a field, head made global
+public class SyntheticBodies {
+    static final int LOOP_DEPTH = 3;
+
+    SootClass node;
+    SootField next;
+    SootField sink;
+    SootMethod use;
+    SootMethod newArray;
+    SootClass holder;
+    int methods = 0;
+
+    JimpleBody body;
+    int line;
+
+    // Fresh Soot scene with the synthetic Node and Holder classes
+    public SyntheticBodies(){
+        G.reset();
+        Options.v().set_allow_phantom_refs(true);
+        Options.v().set_prepend_classpath(true);
+        Options.v().set_keep_line_number(true);
+        Scene.v().loadNecessaryClasses();
+        SootClass object = Scene.v().getSootClass("java.lang.Object");
+
+        node = new SootClass("bench.Node", Modifier.PUBLIC);
+        node.setSuperclass(object);
+        next = new SootField("next", RefType.v("bench.Node"), Modifier.PUBLIC);
+        node.addField(next);
+        Scene.v().addClass(node);
+        node.setApplicationClass();
+
+        holder = new SootClass("bench.Holder", Modifier.PUBLIC);
+        holder.setSuperclass(object);
+        sink = new SootField("sink", RefType.v("bench.Node"), Modifier.PUBLIC | Modifier.STATIC);
+        holder.addField(sink);
+        use = new SootMethod("use", Collections.<Type>singletonList(RefType.v("bench.Node")), VoidType.v(), Modifier.PUBLIC | Modifier.STATIC);
+        holder.addMethod(use);
+        newArray = new SootMethod("newArray", Collections.<Type>emptyList(), ArrayType.v(node.getType(), 1), Modifier.PUBLIC | Modifier.STATIC);
+        holder.addMethod(newArray);
+        Scene.v().addClass(holder);
+        holder.setApplicationClass();
+    }
+
+    public Body build(String shape, int size){
+        SootMethod method = new SootMethod(shape + (methods++), Collections.<Type>emptyList(), VoidType.v(), Modifier.PUBLIC | Modifier.STATIC);
+        holder.addMethod(method);
+        body = Jimple.v().newBody(method);
+        method.setActiveBody(body);
+        line = 1;
+        switch (shape) {
+            case "straight": straight(size); break;
+            case "loops": loops(size); break;
+            case "arrays": arrays(size); break;
+            case "fields": fields(size); break;
+            default: throw new IllegalArgumentException("unknown shape " + shape);
+        }
+        add(Jimple.v().newReturnVoidStmt());
+        return body;
+    }
+
+    private Local local(String name, Type type){
+        Local local = Jimple.v().newLocal(name, type);
+        body.getLocals().add(local);
+        return local;
+    }
+
+    private Unit add(Unit unit){
+        unit.addTag(new LineNumberTag(line++));
+        body.getUnits().add(unit);
+        return unit;
+    }
+
+    private Local newNode(String name){
+        Local local = local(name, node.getType());
+        add(Jimple.v().newAssignStmt(local, Jimple.v().newNewExpr(node.getType())));
+        return local;
+    }
+
+    private void straight(int size){
+        for (int i = 0; i < size; i++) {
+            Local r = newNode("r" + i);
+            if (i % 2 == 0) {
+                add(Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(use.makeRef(), Collections.singletonList(r))));
+            }
+        }
+    }
+
+    private void loops(int size){
+        Local prev = local("prev", node.getType());
+        add(Jimple.v().newAssignStmt(prev, NullConstant.v()));
+        loop(0, Math.max(1, size / LOOP_DEPTH), prev);
+        add(Jimple.v().newAssignStmt(Jimple.v().newStaticFieldRef(sink.makeRef()), prev));
+    }
+
+    private void loop(int depth, int allocations, Local prev){
+        Local i = local("i" + depth, IntType.v());
+        Unit exit = Jimple.v().newNopStmt();
+        add(Jimple.v().newAssignStmt(i, IntConstant.v(0)));
+        Unit head = add(Jimple.v().newIfStmt(Jimple.v().newGeExpr(i, IntConstant.v(10)), exit));
+        if (depth + 1 < LOOP_DEPTH) {
+            loop(depth + 1, allocations, prev);
+        }
+        for (int k = 0; k < allocations; k++) {
+            Local t = newNode("t" + depth + "_" + k);
+            add(Jimple.v().newAssignStmt(Jimple.v().newInstanceFieldRef(t, next.makeRef()), prev));
+            add(Jimple.v().newAssignStmt(prev, t));
+        }
+        add(Jimple.v().newAssignStmt(i, Jimple.v().newAddExpr(i, IntConstant.v(1))));
+        add(Jimple.v().newGotoStmt(head));
+        add(exit);
+    }
+
+    private void arrays(int size){
+        Local array = local("a", ArrayType.v(node.getType(), 1));
+        add(Jimple.v().newAssignStmt(array, Jimple.v().newStaticInvokeExpr(newArray.makeRef(), Collections.<Value>emptyList())));
+        for (int i = 0; i < size; i++) {
+            Local r = newNode("r" + i);
+            add(Jimple.v().newAssignStmt(Jimple.v().newArrayRef(array, IntConstant.v(i)), r));
+            Local x = local("x" + i, node.getType());
+            add(Jimple.v().newAssignStmt(x, Jimple.v().newArrayRef(array, IntConstant.v(size - 1 - i))));
+            if (i % 8 == 0) {
+                add(Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(use.makeRef(), Collections.singletonList(x))));
+            }
+        }
+    }
+
+    private void fields(int size){
+        Local head = newNode("r0");
+        Local prev = head;
+        for (int i = 1; i < size; i++) {
+            Local r = newNode("r" + i);
+            add(Jimple.v().newAssignStmt(Jimple.v().newInstanceFieldRef(prev, next.makeRef()), r));
+            prev = r;
+        }
+        Local cur = head;
+        for (int i = 1; i < size; i++) {
+            Local r = local("n" + i, node.getType());
+            add(Jimple.v().newAssignStmt(r, Jimple.v().newInstanceFieldRef(cur, next.makeRef())));
+            cur = r;
+        }
+        add(Jimple.v().newAssignStmt(Jimple.v().newStaticFieldRef(sink.makeRef()), head));
+    }
+}